@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package ab.nbsnk;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Runs the benchmarks, the arguments are the JMH ones (-h). The results are written to jmh-result.json
+ * unless -rf or -rff say otherwise, the files of two commits can be diffed.
+ * <pre>java -jar target/benchmarks-1.0-jar-with-dependencies.jar ShaderBenchmark.drawFace -rff before.json</pre>
+ */
+public class Benchmarks {
+  public static final long SEED = 1; // of the random inputs
+
+  public static byte[] bytes(String name) {
+    switch (name) {
+      case "spot": name = "/ab/nbsnk/spot_triangulated.obj"; break;
+      case "teapot": name = "/ab/teapot.obj"; break;
+      case "spot_texture": name = "/ab/nbsnk/spot_texture.png"; break;
+      default: throw new IllegalArgumentException(name);
+    }
+    try (InputStream stream = Benchmarks.class.getResourceAsStream(name)) {
+      return stream.readAllBytes();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public static Obj obj(String model) {
+    Obj obj = Obj.load(bytes(model));
+    Obj.fixNormal(obj);
+    return obj;
+  }
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+        || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+    if (!commandLine.getResultFormat().hasValue()) options.resultFormat(ResultFormatType.JSON);
+    if (!commandLine.getResult().hasValue()) options.result("jmh-result.json");
+    new Runner(options.build()).run();
+  }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package ab.nbsnk;
+
+import ab.nbsnk.math.Mat;
+import ab.nbsnk.nodes.Col;
+import ab.nbsnk.nodes.Pnt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per pixel and per node arithmetic, the time of one element of the seeded inputs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MathBenchmark {
+  private static final int SIZE = 1024; // elements per invocation
+
+  private final double[] points = new double[SIZE * 2]; // xy in the 320x240 box of the triangle
+  private final double[] barycentric = new double[4];
+  private final double[] weights = new double[SIZE * 3]; // barycentric, sum to 1
+  private final Col[] cols = new Col[SIZE + 2];
+  private final Pnt[] pnts = new Pnt[SIZE + 2];
+  private final double[] transforms = new double[SIZE * 6]; // translation and rotation in turns
+
+  @Setup
+  public void setup() {
+    Random random = new Random(Benchmarks.SEED);
+    for (int i = 0; i < SIZE; i++) {
+      points[i * 2] = random.nextDouble() * 320;
+      points[i * 2 + 1] = random.nextDouble() * 240;
+      double a = random.nextDouble();
+      double b = random.nextDouble() * (1 - a);
+      weights[i * 3] = a;
+      weights[i * 3 + 1] = b;
+      weights[i * 3 + 2] = 1 - a - b;
+      for (int j = 0; j < 3; j++) transforms[i * 6 + j] = random.nextDouble() * 2 - 1;
+      for (int j = 3; j < 6; j++) transforms[i * 6 + j] = random.nextDouble();
+    }
+    for (int i = 0; i < SIZE + 2; i++) {
+      cols[i] = new Col(random.nextDouble(), random.nextDouble(), random.nextDouble(), 1);
+      pnts[i] = new Pnt(random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE)
+  public int barycentric() {
+    double[] r = barycentric;
+    r[3] = 0; // once per face
+    int inside = 0;
+    for (int i = 0; i < SIZE; i++) {
+      if (Shader.barycentric(points[i * 2], points[i * 2 + 1], 60, 1, 299, 120, 60, 239, r)) inside++;
+    }
+    return inside;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE)
+  public int colArithmetic() {
+    Col col = new Col();
+    int argb = 0;
+    for (int i = 0; i < SIZE; i++) {
+      col.add(cols[i], 0.5).mul(0.75).mul(cols[i + 1]);
+      argb ^= col.argb();
+    }
+    return argb;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE)
+  public int colBarycentric() {
+    double[] r = barycentric;
+    int argb = 0;
+    for (int i = 0; i < SIZE; i++) {
+      System.arraycopy(weights, i * 3, r, 0, 3);
+      argb ^= Col.barycentric(cols[i], cols[i + 1], cols[i + 2], r).argb();
+    }
+    return argb;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE)
+  public double pntArithmetic() {
+    Pnt pnt = new Pnt(0, 0, 1);
+    double dot = 0;
+    for (int i = 0; i < SIZE; i++) {
+      dot += pnt.add(pnts[i], 0.5).normalize().dot(pnts[i + 1]);
+    }
+    return dot;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE)
+  public double pntBarycentric() {
+    double[] r = barycentric;
+    double sum = 0;
+    for (int i = 0; i < SIZE; i++) {
+      System.arraycopy(weights, i * 3, r, 0, 3);
+      sum += Pnt.barycentric(pnts[i], pnts[i + 1], pnts[i + 2], r).z;
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE)
+  public Mat multiply() {
+    Mat matrix = new Mat();
+    double[] t = transforms;
+    for (int i = 0; i < SIZE * 6; i += 6) {
+      matrix = EngineNbs.multiply(matrix, t[i], t[i + 1], t[i + 2], t[i + 3], t[i + 4], t[i + 5]);
+    }
+    return matrix;
+  }
+
+}
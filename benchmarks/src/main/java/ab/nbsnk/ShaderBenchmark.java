@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package ab.nbsnk;
+
+import ab.nbsnk.math.Mat;
+import ab.nbsnk.math.Sphere;
+import ab.nbsnk.nodes.Col;
+import ab.nbsnk.nodes.Pnt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rasterization and the per pixel stages of the shader on a frame of the models, the same one every time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShaderBenchmark {
+  private static final int WIDTH = 320;
+  private static final int HEIGHT = 200;
+  private static final int SIZE = 1024; // pixels per invocation
+
+  /**
+   * Shader of a cleared frame with the spot texture and the seeded lights.
+   */
+  static Shader frame(int lights) throws IOException {
+    Shader shader = new Shader();
+    shader.ambientColor = new Col(0xFF222222);
+    shader.diffuseColor = new Col(0xFFDDDDDD);
+    shader.specularColor = new Col(-1);
+    shader.specularPower = 100;
+    BufferedImage texture = ImageIO.read(new ByteArrayInputStream(Benchmarks.bytes("spot_texture")));
+    shader.textureWidth = texture.getWidth();
+    shader.textureHeight = texture.getHeight();
+    shader.textureRaster = texture.getRGB(0, 0, shader.textureWidth, shader.textureHeight,
+        null, 0, shader.textureWidth);
+    cls(shader, lights);
+    return shader;
+  }
+
+  /**
+   * Clears the frame, the depth, the hierarchical depth and the lights, then adds the seeded lights.
+   */
+  static void cls(Shader shader, int lights) {
+    shader.cls(WIDTH, HEIGHT);
+    Random random = new Random(Benchmarks.SEED);
+    for (int i = 0; i < lights; i++) {
+      shader.addLight(new Pnt(random.nextDouble() * 10 - 5, random.nextDouble() * 10 - 5, random.nextDouble() * 5),
+          new Col(random.nextInt() | 0xFF000000));
+    }
+  }
+
+  /**
+   * The model in the middle of the image, a bit turned.
+   */
+  static Mat matrix(Obj obj) {
+    Sphere bounds = new Sphere().set(obj.vertex);
+    Mat matrix = EngineNbs.multiply(new Mat(), 0, 0, -5 * bounds.r, 0.1, 0.05, 0);
+    return EngineNbs.multiply(matrix, -bounds.x, -bounds.y, -bounds.z, 0, 0, 0);
+  }
+
+  @State(Scope.Thread)
+  public static class Faces {
+    @Param({"spot", "teapot"})
+    public String model;
+    @Param({"NONE", "LAMBERT", "GOURAUD", "PHONG"})
+    public Shader.Illumination illumination;
+
+    Shader shader;
+    Mesh mesh;
+    Mat matrix;
+    VertexStage vertexStage = new VertexStage();
+
+    @Setup
+    public void setup() throws IOException {
+      Obj obj = Benchmarks.obj(model);
+      if (illumination == Shader.Illumination.LAMBERT) Obj.flatNormal(obj);
+      shader = frame(1);
+      shader.enableIllumination = illumination;
+      mesh = vertexStage.mesh(obj);
+      matrix = matrix(obj);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Lights {
+    @Param({"1", "4", "16"})
+    public int lights;
+
+    Shader shader;
+    final double[] points = new double[SIZE * 9]; // xyz, normal and viewer vector
+
+    @Setup
+    public void setup() throws IOException {
+      Obj obj = Benchmarks.obj("spot");
+      shader = frame(lights);
+      shader.add(obj, matrix(obj)); // lists the lights
+      Random random = new Random(Benchmarks.SEED);
+      for (int i = 0; i < points.length; i += 3) {
+        double x = random.nextDouble() * 2 - 1;
+        double y = random.nextDouble() * 2 - 1;
+        double z = random.nextDouble() * 2 - 1;
+        double length = i % 9 == 0 ? 1 : Math.sqrt(x * x + y * y + z * z);
+        points[i] = x / length;
+        points[i + 1] = y / length;
+        points[i + 2] = z / length - (i % 9 == 0 ? 3 : 0);
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Texture {
+    Shader shader;
+    final double[] uv = new double[SIZE * 2];
+
+    @Setup
+    public void setup() throws IOException {
+      shader = frame(0);
+      Random random = new Random(Benchmarks.SEED);
+      for (int i = 0; i < uv.length; i++) uv[i] = random.nextDouble();
+    }
+  }
+
+  /**
+   * All the faces of a new frame, with the vertex stage. Nothing is kept from the last invocation,
+   * no hierarchical depth to cull the faces and no illumination of the vertices.
+   */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int drawFace(Faces faces) {
+    Shader shader = faces.shader;
+    cls(shader, 1);
+    shader.add(faces.mesh, faces.matrix, faces.vertexStage);
+    shader.finish();
+    return shader.imageRaster[WIDTH * HEIGHT / 2 + WIDTH / 2];
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE)
+  public double illuminationRgb(Lights lights) {
+    Shader shader = lights.shader;
+    double[] p = lights.points;
+    double sum = 0;
+    for (int i = 0; i < p.length; i += 9) {
+      shader.illuminationRgb(p[i], p[i + 1], p[i + 2], p[i + 3], p[i + 4], p[i + 5], p[i + 6], p[i + 7], p[i + 8]);
+      sum += shader.diffuseR + shader.specularR;
+    }
+    return sum;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE)
+  public int getTextureColor(Texture texture) {
+    Shader shader = texture.shader;
+    double[] uv = texture.uv;
+    int argb = 0;
+    for (int i = 0; i < uv.length; i += 2) {
+      shader.ttx = uv[i];
+      shader.tty = uv[i + 1];
+      argb ^= shader.getTextureColor();
+    }
+    return argb;
+  }
+
+}
@@ -18,6 +18,7 @@
 package ab.nbsnk;
 
 import java.awt.image.BufferedImage;
+import java.nio.DoubleBuffer;
 import java.util.function.Supplier;
 
 /**
@@ -35,6 +36,16 @@ public interface Engine3d extends AutoCloseable {
 
   Shape shape(Obj obj);
 
+  /**
+   * Shape with levels of detail, finest first (see MeshLod.chain), the level is picked every frame by screen size.
+   */
+  Shape shape(Obj[] lods);
+
+  /**
+   * Copies of the obj placed from primitive buffers, at most capacity of them, drawn as one node.
+   */
+  Instances instances(Obj obj, int capacity);
+
   Group group();
 
   Light light();
@@ -47,8 +58,48 @@ public interface Engine3d extends AutoCloseable {
 
   Engine3d setFocalLength(double value);
 
+  int TRANSFORM_STRIDE = 6; // x, y, z, yaw, pitch, roll of each node in transforms()
+  int MATRIX_STRIDE = 12; // rows of the affine 3x4 local matrix of each node in matrices()
+
+  /**
+   * Translation and rotation of many nodes in one call, the same as calling them node by node.
+   */
+  default Engine3d transforms(Node[] nodes, double[] transforms) {
+    if (transforms.length < nodes.length * TRANSFORM_STRIDE) throw new IllegalArgumentException();
+    for (int i = 0, j = 0; i < nodes.length; i++, j += TRANSFORM_STRIDE) {
+      nodes[i].translation(transforms[j], transforms[j + 1], transforms[j + 2]);
+      nodes[i].rotation(transforms[j + 3], transforms[j + 4], transforms[j + 5]);
+    }
+    return this;
+  }
+
+  /**
+   * Reads from the position of the buffer, the position is not changed.
+   */
+  default Engine3d transforms(Node[] nodes, DoubleBuffer transforms) {
+    double[] array = new double[nodes.length * TRANSFORM_STRIDE];
+    transforms.duplicate().get(array);
+    return transforms(nodes, array);
+  }
+
+  /**
+   * Local matrices of the nodes, they replace the translation and the rotation until the next call of those.
+   */
+  Engine3d matrices(Node[] nodes, double[] matrices);
+
+  default Engine3d matrices(Node[] nodes, DoubleBuffer matrices) {
+    double[] array = new double[nodes.length * MATRIX_STRIDE];
+    matrices.duplicate().get(array);
+    return matrices(nodes, array);
+  }
+
   void update();
 
+  /**
+   * Timings and counters of the last update().
+   */
+  FrameStats stats();
+
   /**
    * System Exclusive message.
    */
@@ -98,10 +149,36 @@ public interface Engine3d extends AutoCloseable {
 
   interface Group extends Node {}
 
+  interface Instances extends Node {
+
+    int STRIDE = 7; // x, y, z, yaw, pitch, roll, scale of each instance in transforms()
+
+    // written by the caller, read by setCount
+    double[] transforms();
+
+    // opaque diffuse color of each instance, white by default
+    int[] colors();
+
+    // the first count instances are drawn, the buffers are read again
+    Instances setCount(int count);
+
+    // the materials of Shape, shared by all the instances, colors() takes the place of setColor
+    Instances setSpecular(int color, double power);
+
+    Instances selfIllumination(int color);
+
+    Instances setBumpMap(BufferedImage image);
+
+    Instances setReflectionMap(BufferedImage image, double alpha, Node skybox);
+  }
+
   interface Light extends Node {
 
     Light setColor(int color);
 
+    // distance where the light fades out to nothing, infinite by default
+    Light setRange(double value);
+
   }
 
 }
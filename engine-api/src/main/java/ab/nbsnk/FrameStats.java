@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk;
+
+/**
+ * Timings in nanoseconds and counters of the last update(), each engine fills what it can, the object is reused.
+ */
+public class FrameStats {
+  public long frames; // update() calls so far
+  public long frameNanos; // the whole update()
+  public long sceneNanos; // world transforms, culling and sorting of the shapes
+  public long vertexNanos; // vertex transform and the culling of the faces
+  public long rasterNanos; // faces to pixels, with the forward shading
+  public long shadeNanos; // deferred lighting pass
+  public long blitNanos; // copy into the image, upscale and text
+  public long presentNanos; // handing the scene over to the renderer and getting the frame back
+  public int shapes; // drawn, after the culling
+  public int culledShapes; // outside the view
+  public int occludedShapes; // in the view but hidden behind the drawn ones
+  public long faces; // of the drawn shapes
+  public long backFaces; // facing away from the camera
+  public long clippedFaces; // outside the screen or crossing the near plane
+  public long pixelTests; // depth tests of the covered pixels
+  public long pixelRejects; // failed depth tests, the overdraw that sorting saves
+  public long pixelsShaded; // lit and written, the deferred ones once
+  public long pixels; // of the rendered image
+
+  public double rejectRate() {
+    return pixelTests == 0 ? 0 : (double) pixelRejects / pixelTests;
+  }
+
+  /**
+   * Shaded pixels per image pixel.
+   */
+  public double overdraw() {
+    return pixels == 0 ? 0 : (double) pixelsShaded / pixels;
+  }
+
+  /**
+   * Clears the values of a frame, keeps the frame count.
+   */
+  public FrameStats clear() {
+    frameNanos = 0; sceneNanos = 0; vertexNanos = 0; rasterNanos = 0; shadeNanos = 0; blitNanos = 0; presentNanos = 0;
+    shapes = 0; culledShapes = 0; occludedShapes = 0;
+    faces = 0; backFaces = 0; clippedFaces = 0;
+    pixelTests = 0; pixelRejects = 0; pixelsShaded = 0; pixels = 0;
+    return this;
+  }
+
+  /**
+   * Sums the values of a frame, for the engines rendering with others.
+   */
+  public FrameStats add(FrameStats s) {
+    frameNanos += s.frameNanos; sceneNanos += s.sceneNanos; vertexNanos += s.vertexNanos;
+    rasterNanos += s.rasterNanos; shadeNanos += s.shadeNanos; blitNanos += s.blitNanos; presentNanos += s.presentNanos;
+    shapes += s.shapes; culledShapes += s.culledShapes; occludedShapes += s.occludedShapes;
+    faces += s.faces; backFaces += s.backFaces; clippedFaces += s.clippedFaces;
+    pixelTests += s.pixelTests; pixelRejects += s.pixelRejects; pixelsShaded += s.pixelsShaded; pixels += s.pixels;
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("frame %.2f scene %.2f vertex %.2f raster %.2f shade %.2f blit %.2f present %.2f ms,"
+            + " shapes %d culled %d occluded %d, faces %d back %d clipped %d, overdraw %.2f reject %.2f",
+        frameNanos / 1e6, sceneNanos / 1e6, vertexNanos / 1e6, rasterNanos / 1e6, shadeNanos / 1e6,
+        blitNanos / 1e6, presentNanos / 1e6, shapes, culledShapes, occludedShapes, faces, backFaces, clippedFaces,
+        overdraw(), rejectRate());
+  }
+
+}
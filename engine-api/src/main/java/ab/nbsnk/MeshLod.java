@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Mesh levels of detail by quadric error edge collapse (Garland, Heckbert).
+ * A vertex collapses onto its neighbour, the corners keep their normal and texture indexes,
+ * the vertices on uv seams, hard edges and open borders only move along them.
+ */
+public class MeshLod {
+  public static final double PIXELS_PER_FACE = 4; // screen area per face of the picked level
+  public static final int MIN_FACES = 8;
+
+  /**
+   * The obj and its simplified copies, each one with about half the faces of the previous one.
+   */
+  public static Obj[] chain(Obj obj, int levels) {
+    Obj[] chain = new Obj[levels];
+    chain[0] = obj;
+    int size = 1;
+    while (size < levels) {
+      int faces = chain[size - 1].face.length / 9;
+      if (faces / 2 < MIN_FACES) break;
+      Obj lod = simplify(chain[size - 1], faces / 2);
+      if (lod.face.length / 9 > faces * 9 / 10) break; // stuck on the seams
+      chain[size++] = lod;
+    }
+    return Arrays.copyOf(chain, size);
+  }
+
+  /**
+   * The coarsest level with enough faces for the screen area in pixels, 0 is the full mesh.
+   */
+  public static int level(Obj[] chain, double area) {
+    int level = 0;
+    while (level + 1 < chain.length && chain[level + 1].face.length / 9 * PIXELS_PER_FACE >= area) level++;
+    return level;
+  }
+
+  private static class Collapse implements Comparable<Collapse> {
+    double cost;
+    int from;
+    int to;
+    int fromVersion;
+    int toVersion;
+
+    @Override
+    public int compareTo(Collapse o) {
+      return Double.compare(cost, o.cost);
+    }
+  }
+
+  /**
+   * Copy of the obj reduced to about the number of faces.
+   */
+  public static Obj simplify(Obj obj, int faces) {
+    return new MeshLod(obj).simplify(faces);
+  }
+
+  private final Obj obj;
+  private final int[] face;
+  private final double[] vertex;
+  private final boolean[] removed; // per face
+  private final double[] quadric; // per vertex, symmetric 4x4 as a2 ab ac ad b2 bc bd c2 cd d2
+  private final int[][] vertexFaces;
+  private final int[] vertexFacesSize;
+  private final boolean[] border; // seam, hard edge or open border
+  private final boolean[] dead;
+  private final int[] version;
+  private final PriorityQueue<Collapse> queue = new PriorityQueue<>();
+  private int faces;
+
+  private MeshLod(Obj obj) {
+    this.obj = obj;
+    face = Arrays.copyOf(obj.face, obj.face.length);
+    vertex = obj.vertex;
+    faces = face.length / 9;
+    int vertices = vertex.length / 3;
+    removed = new boolean[faces];
+    quadric = new double[vertices * 10];
+    vertexFaces = new int[vertices][4];
+    vertexFacesSize = new int[vertices];
+    border = new boolean[vertices];
+    dead = new boolean[vertices];
+    version = new int[vertices];
+    int[] wedge = new int[vertices * 2];
+    Arrays.fill(wedge, -1);
+    Map<Long, Integer> edges = new HashMap<>();
+    for (int f = 0; f < faces; f++) {
+      plane(f);
+      for (int c = 0; c < 3; c++) {
+        int v = face[f * 9 + c * 3];
+        int next = face[f * 9 + (c + 1) % 3 * 3];
+        addFace(v, f);
+        edges.merge(edge(v, next), 1, Integer::sum);
+        if (wedge[v * 2] < 0) {
+          wedge[v * 2] = face[f * 9 + c * 3 + 1];
+          wedge[v * 2 + 1] = face[f * 9 + c * 3 + 2];
+        } else if (wedge[v * 2] != face[f * 9 + c * 3 + 1] || wedge[v * 2 + 1] != face[f * 9 + c * 3 + 2]) {
+          border[v] = true;
+        }
+      }
+    }
+    for (Map.Entry<Long, Integer> entry : edges.entrySet()) {
+      if (entry.getValue() == 2) continue;
+      border[(int) (entry.getKey() >> 32)] = true;
+      border[(int) (long) entry.getKey()] = true;
+    }
+    // keep the borders in place, planes through the border edges perpendicular to the faces
+    for (int f = 0; f < faces; f++) {
+      for (int c = 0; c < 3; c++) {
+        int a = face[f * 9 + c * 3];
+        int b = face[f * 9 + (c + 1) % 3 * 3];
+        if (border[a] && border[b] && seam(a, b)) borderPlane(f, a, b);
+      }
+    }
+    for (int f = 0; f < faces; f++) {
+      for (int c = 0; c < 3; c++) {
+        int a = face[f * 9 + c * 3];
+        int b = face[f * 9 + (c + 1) % 3 * 3];
+        if (a < b || edges.get(edge(a, b)) == 1) push(a, b);
+      }
+    }
+  }
+
+  private static long edge(int a, int b) {
+    return (long) Math.min(a, b) << 32 | Math.max(a, b);
+  }
+
+  private void addFace(int v, int f) {
+    if (vertexFacesSize[v] == vertexFaces[v].length) vertexFaces[v] = Arrays.copyOf(vertexFaces[v], vertexFaces[v].length * 2);
+    vertexFaces[v][vertexFacesSize[v]++] = f;
+  }
+
+  private static void add(double[] q, int i, double a, double b, double c, double d, double weight) {
+    q[i] += weight * a * a; q[i + 1] += weight * a * b; q[i + 2] += weight * a * c; q[i + 3] += weight * a * d;
+    q[i + 4] += weight * b * b; q[i + 5] += weight * b * c; q[i + 6] += weight * b * d;
+    q[i + 7] += weight * c * c; q[i + 8] += weight * c * d;
+    q[i + 9] += weight * d * d;
+  }
+
+  /**
+   * Adds the area weighted plane of the face to the quadrics of its vertices.
+   */
+  private void plane(int f) {
+    int v0 = face[f * 9] * 3;
+    int v1 = face[f * 9 + 3] * 3;
+    int v2 = face[f * 9 + 6] * 3;
+    double ax = vertex[v1] - vertex[v0], ay = vertex[v1 + 1] - vertex[v0 + 1], az = vertex[v1 + 2] - vertex[v0 + 2];
+    double bx = vertex[v2] - vertex[v0], by = vertex[v2 + 1] - vertex[v0 + 1], bz = vertex[v2 + 2] - vertex[v0 + 2];
+    double nx = ay * bz - az * by, ny = az * bx - ax * bz, nz = ax * by - ay * bx;
+    double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+    if (length == 0) return;
+    nx /= length;
+    ny /= length;
+    nz /= length;
+    double d = -(nx * vertex[v0] + ny * vertex[v0 + 1] + nz * vertex[v0 + 2]);
+    for (int c = 0; c < 3; c++) add(quadric, face[f * 9 + c * 3] * 10, nx, ny, nz, d, length / 2);
+  }
+
+  private void borderPlane(int f, int a, int b) {
+    int v0 = face[f * 9] * 3;
+    int v1 = face[f * 9 + 3] * 3;
+    int v2 = face[f * 9 + 6] * 3;
+    double ax = vertex[v1] - vertex[v0], ay = vertex[v1 + 1] - vertex[v0 + 1], az = vertex[v1 + 2] - vertex[v0 + 2];
+    double bx = vertex[v2] - vertex[v0], by = vertex[v2 + 1] - vertex[v0 + 1], bz = vertex[v2 + 2] - vertex[v0 + 2];
+    double nx = ay * bz - az * by, ny = az * bx - ax * bz, nz = ax * by - ay * bx;
+    double ex = vertex[b * 3] - vertex[a * 3], ey = vertex[b * 3 + 1] - vertex[a * 3 + 1];
+    double ez = vertex[b * 3 + 2] - vertex[a * 3 + 2];
+    double px = ey * nz - ez * ny, py = ez * nx - ex * nz, pz = ex * ny - ey * nx; // in the edge, across the face
+    double length = Math.sqrt(px * px + py * py + pz * pz);
+    if (length == 0) return;
+    px /= length;
+    py /= length;
+    pz /= length;
+    double d = -(px * vertex[a * 3] + py * vertex[a * 3 + 1] + pz * vertex[a * 3 + 2]);
+    double weight = 100 * (ex * ex + ey * ey + ez * ez);
+    add(quadric, a * 10, px, py, pz, d, weight);
+    add(quadric, b * 10, px, py, pz, d, weight);
+  }
+
+  private double error(int from, int to) {
+    double[] q = quadric;
+    int i = from * 10;
+    int j = to * 10;
+    double x = vertex[to * 3], y = vertex[to * 3 + 1], z = vertex[to * 3 + 2];
+    double q0 = q[i] + q[j], q1 = q[i + 1] + q[j + 1], q2 = q[i + 2] + q[j + 2], q3 = q[i + 3] + q[j + 3];
+    double q4 = q[i + 4] + q[j + 4], q5 = q[i + 5] + q[j + 5], q6 = q[i + 6] + q[j + 6];
+    double q7 = q[i + 7] + q[j + 7], q8 = q[i + 8] + q[j + 8], q9 = q[i + 9] + q[j + 9];
+    return q0 * x * x + 2 * q1 * x * y + 2 * q2 * x * z + 2 * q3 * x
+        + q4 * y * y + 2 * q5 * y * z + 2 * q6 * y + q7 * z * z + 2 * q8 * z + q9;
+  }
+
+  /**
+   * Edge of the open border or between faces with different normal or texture indexes.
+   */
+  private boolean seam(int a, int b) {
+    int count = 0;
+    int n = -1, t = -1, m = -1, u = -1;
+    for (int k = 0; k < vertexFacesSize[a]; k++) {
+      int f = vertexFaces[a][k];
+      if (removed[f]) continue;
+      int ca = corner(f, a);
+      int cb = corner(f, b);
+      if (cb < 0) continue;
+      if (count++ == 0) {
+        n = face[ca + 1]; t = face[ca + 2]; m = face[cb + 1]; u = face[cb + 2];
+      } else if (n != face[ca + 1] || t != face[ca + 2] || m != face[cb + 1] || u != face[cb + 2]) {
+        return true;
+      }
+    }
+    return count != 2;
+  }
+
+  private int corner(int f, int v) {
+    for (int c = 0; c < 3; c++) if (face[f * 9 + c * 3] == v) return f * 9 + c * 3;
+    return -1;
+  }
+
+  private boolean allowed(int from, int to) {
+    return !border[from] || border[to] && seam(from, to);
+  }
+
+  private void push(int a, int b) {
+    boolean ab = allowed(a, b);
+    boolean ba = allowed(b, a);
+    if (!ab && !ba) return;
+    Collapse collapse = new Collapse();
+    double costAB = ab ? error(a, b) : Double.POSITIVE_INFINITY;
+    double costBA = ba ? error(b, a) : Double.POSITIVE_INFINITY;
+    collapse.from = costAB <= costBA ? a : b;
+    collapse.to = costAB <= costBA ? b : a;
+    collapse.cost = Math.min(costAB, costBA);
+    collapse.fromVersion = version[collapse.from];
+    collapse.toVersion = version[collapse.to];
+    queue.add(collapse);
+  }
+
+  private Obj simplify(int target) {
+    while (faces > target && !queue.isEmpty()) {
+      Collapse c = queue.poll();
+      if (dead[c.from] || dead[c.to] || version[c.from] != c.fromVersion || version[c.to] != c.toVersion) continue;
+      if (!linked(c.from, c.to) || flips(c.from, c.to)) continue;
+      collapse(c.from, c.to);
+    }
+    return compact();
+  }
+
+  /**
+   * The link condition, the common neighbours of an edge are the third vertices of its faces, no pinching.
+   */
+  private boolean linked(int a, int b) {
+    int shared = 0;
+    for (int k = 0; k < vertexFacesSize[a]; k++) {
+      int f = vertexFaces[a][k];
+      if (!removed[f] && corner(f, b) >= 0) shared++;
+    }
+    int common = 0;
+    int[] neighboursB = neighbours(b);
+    for (int v : neighbours(a)) if (Arrays.binarySearch(neighboursB, v) >= 0) common++;
+    return shared > 0 && common <= shared;
+  }
+
+  private int[] neighbours(int v) {
+    int[] neighbours = new int[vertexFacesSize[v] * 2];
+    int size = 0;
+    for (int k = 0; k < vertexFacesSize[v]; k++) {
+      int f = vertexFaces[v][k];
+      if (removed[f]) continue;
+      for (int c = 0; c < 3; c++) if (face[f * 9 + c * 3] != v) neighbours[size++] = face[f * 9 + c * 3];
+    }
+    int[] sorted = Arrays.copyOf(neighbours, size);
+    Arrays.sort(sorted);
+    return Arrays.stream(sorted).distinct().toArray();
+  }
+
+  /**
+   * A face around the vertex turns over or degenerates when the vertex moves.
+   */
+  private boolean flips(int from, int to) {
+    for (int k = 0; k < vertexFacesSize[from]; k++) {
+      int f = vertexFaces[from][k];
+      if (removed[f] || corner(f, to) >= 0) continue;
+      double[] before = normal(f, -1, -1);
+      double[] after = normal(f, from, to);
+      double lb = Math.sqrt(before[0] * before[0] + before[1] * before[1] + before[2] * before[2]);
+      double la = Math.sqrt(after[0] * after[0] + after[1] * after[1] + after[2] * after[2]);
+      if (la == 0 || lb == 0) return true;
+      if ((before[0] * after[0] + before[1] * after[1] + before[2] * after[2]) / (la * lb) < 0.2) return true;
+    }
+    return false;
+  }
+
+  private double[] normal(int f, int from, int to) {
+    int[] v = new int[3];
+    for (int c = 0; c < 3; c++) {
+      v[c] = face[f * 9 + c * 3];
+      if (v[c] == from) v[c] = to;
+      v[c] *= 3;
+    }
+    double ax = vertex[v[1]] - vertex[v[0]], ay = vertex[v[1] + 1] - vertex[v[0] + 1];
+    double az = vertex[v[1] + 2] - vertex[v[0] + 2];
+    double bx = vertex[v[2]] - vertex[v[0]], by = vertex[v[2] + 1] - vertex[v[0] + 1];
+    double bz = vertex[v[2] + 2] - vertex[v[0] + 2];
+    return new double[]{ay * bz - az * by, az * bx - ax * bz, ax * by - ay * bx};
+  }
+
+  private void collapse(int from, int to) {
+    // the normal and texture of the moved corners, taken from the collapsed faces
+    int[] wedges = new int[8];
+    int wedgesSize = 0;
+    for (int k = 0; k < vertexFacesSize[from]; k++) {
+      int f = vertexFaces[from][k];
+      if (removed[f]) continue;
+      int cb = corner(f, to);
+      if (cb < 0) continue;
+      int ca = corner(f, from);
+      if (wedgesSize < wedges.length) {
+        wedges[wedgesSize++] = face[ca + 1];
+        wedges[wedgesSize++] = face[ca + 2];
+        wedges[wedgesSize++] = face[cb + 1];
+        wedges[wedgesSize++] = face[cb + 2];
+      }
+      removed[f] = true;
+      faces--;
+    }
+    for (int k = 0; k < vertexFacesSize[from]; k++) {
+      int f = vertexFaces[from][k];
+      if (removed[f]) continue;
+      int ca = corner(f, from);
+      face[ca] = to;
+      for (int w = 0; w < wedgesSize; w += 4) {
+        if (face[ca + 1] == wedges[w] && face[ca + 2] == wedges[w + 1]) {
+          face[ca + 1] = wedges[w + 2];
+          face[ca + 2] = wedges[w + 3];
+          break;
+        }
+      }
+      addFace(to, f);
+    }
+    for (int i = 0; i < 10; i++) quadric[to * 10 + i] += quadric[from * 10 + i];
+    dead[from] = true;
+    version[to]++;
+    for (int v : neighbours(to)) push(to, v);
+  }
+
+  private Obj compact() {
+    int[] index = new int[vertex.length / 3];
+    Arrays.fill(index, -1);
+    int[] result = new int[faces * 9];
+    double[] vertices = new double[vertex.length];
+    int size = 0;
+    int i = 0;
+    for (int f = 0; f < removed.length; f++) {
+      if (removed[f]) continue;
+      for (int c = 0; c < 9; c += 3) {
+        int v = face[f * 9 + c];
+        if (index[v] < 0) {
+          index[v] = size;
+          System.arraycopy(vertex, v * 3, vertices, size * 3, 3);
+          size++;
+        }
+        result[i + c] = index[v];
+        result[i + c + 1] = face[f * 9 + c + 1];
+        result[i + c + 2] = face[f * 9 + c + 2];
+      }
+      i += 9;
+    }
+    Obj lod = new Obj();
+    lod.face = result;
+    lod.vertex = Arrays.copyOf(vertices, size * 3);
+    lod.normal = obj.normal == null ? null : Arrays.copyOf(obj.normal, obj.normal.length);
+    lod.texture = obj.texture == null ? null : Arrays.copyOf(obj.texture, obj.texture.length);
+    lod.image = obj.image;
+    lod.id = obj.id == null ? null : obj.id + "/" + faces;
+    return lod;
+  }
+
+}
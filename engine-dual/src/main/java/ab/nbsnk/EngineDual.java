@@ -39,6 +39,7 @@ public class EngineDual implements Engine3d {
   private BufferedImage imageLeft;
   private BufferedImage imageRight;
   private Supplier<String> textSupplier;
+  private final FrameStats stats = new FrameStats(); // of both engines, the comparison counts as the blit
 
   public EngineDual(Engine3d engineLeft, Engine3d engineRight) {
     this.engineLeft = engineLeft;
@@ -92,6 +93,16 @@ public class EngineDual implements Engine3d {
     return new ShapeDual(engineLeft.shape(obj), engineRight.shape(obj));
   }
 
+  @Override
+  public ShapeDual shape(Obj[] lods) {
+    return new ShapeDual(engineLeft.shape(lods), engineRight.shape(lods));
+  }
+
+  @Override
+  public InstancesDual instances(Obj obj, int capacity) {
+    return new InstancesDual(engineLeft.instances(obj, capacity), engineRight.instances(obj, capacity));
+  }
+
   @Override
   public GroupDual group() {
     return new GroupDual(engineLeft.group(), engineRight.group());
@@ -128,10 +139,32 @@ public class EngineDual implements Engine3d {
     return this;
   }
 
+  @Override
+  public EngineDual transforms(Node[] nodes, double[] transforms) {
+    engineLeft.transforms(side(nodes, true), transforms);
+    engineRight.transforms(side(nodes, false), transforms);
+    return this;
+  }
+
+  @Override
+  public EngineDual matrices(Node[] nodes, double[] matrices) {
+    engineLeft.matrices(side(nodes, true), matrices);
+    engineRight.matrices(side(nodes, false), matrices);
+    return this;
+  }
+
+  private static Node[] side(Node[] nodes, boolean left) {
+    Node[] side = new Node[nodes.length];
+    for (int i = 0; i < nodes.length; i++) side[i] = left ? ((NodeDual) nodes[i]).nodeLeft : ((NodeDual) nodes[i]).nodeRight;
+    return side;
+  }
+
   @Override
   public void update() {
+    long start = System.nanoTime();
     engineLeft.update();
     engineRight.update();
+    long rendered = System.nanoTime();
     Graphics2D graphics = image.createGraphics();
     int width = imageWidth / 2;
     int height = imageHeight - imageHeight / IMGDIV;
@@ -169,6 +202,15 @@ public class EngineDual implements Engine3d {
       graphics.clearRect(0, imageHeight - 40, 100, 40);
       graphics.drawString(textSupplier.get(), 20, imageHeight - 20);
     }
+    long end = System.nanoTime();
+    stats.clear().add(engineLeft.stats()).add(engineRight.stats()).frames++;
+    stats.blitNanos += end - rendered;
+    stats.frameNanos = end - start;
+  }
+
+  @Override
+  public FrameStats stats() {
+    return stats;
   }
 
   @Override
@@ -236,6 +278,62 @@ public class EngineDual implements Engine3d {
     }
   }
 
+  private static class InstancesDual extends NodeDual implements Instances {
+
+    public InstancesDual(Instances instancesLeft, Instances instancesRight) {
+      super(instancesLeft, instancesRight);
+    }
+
+    @Override
+    public double[] transforms() {
+      return ((Instances) this.nodeLeft).transforms();
+    }
+
+    @Override
+    public int[] colors() {
+      return ((Instances) this.nodeLeft).colors();
+    }
+
+    @Override
+    public InstancesDual setCount(int count) {
+      Instances left = (Instances) this.nodeLeft;
+      Instances right = (Instances) this.nodeRight;
+      left.setCount(count);
+      System.arraycopy(left.transforms(), 0, right.transforms(), 0, count * STRIDE);
+      System.arraycopy(left.colors(), 0, right.colors(), 0, count);
+      right.setCount(count);
+      return this;
+    }
+
+    @Override
+    public InstancesDual setSpecular(int color, double power) {
+      ((Instances) this.nodeLeft).setSpecular(color, power);
+      ((Instances) this.nodeRight).setSpecular(color, power);
+      return this;
+    }
+
+    @Override
+    public InstancesDual selfIllumination(int color) {
+      ((Instances) this.nodeLeft).selfIllumination(color);
+      ((Instances) this.nodeRight).selfIllumination(color);
+      return this;
+    }
+
+    @Override
+    public InstancesDual setBumpMap(BufferedImage image) {
+      ((Instances) this.nodeLeft).setBumpMap(image);
+      ((Instances) this.nodeRight).setBumpMap(image);
+      return this;
+    }
+
+    @Override
+    public InstancesDual setReflectionMap(BufferedImage image, double alpha, Node skybox) {
+      ((Instances) this.nodeLeft).setReflectionMap(image, alpha, ((NodeDual) skybox).nodeLeft);
+      ((Instances) this.nodeRight).setReflectionMap(image, alpha, ((NodeDual) skybox).nodeRight);
+      return this;
+    }
+  }
+
   private static class ShapeDual extends NodeDual implements Shape {
 
     public ShapeDual(Shape shapeLeft, Shape shapeRight) {
@@ -297,6 +395,13 @@ public class EngineDual implements Engine3d {
       ((Light) this.nodeRight).setColor(color);
       return this;
     }
+
+    @Override
+    public LightDual setRange(double value) {
+      ((Light) this.nodeLeft).setRange(value);
+      ((Light) this.nodeRight).setRange(value);
+      return this;
+    }
   }
 
 }
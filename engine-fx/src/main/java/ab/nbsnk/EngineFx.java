@@ -19,6 +19,7 @@ package ab.nbsnk;
 
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.geometry.Point3D;
 import javafx.scene.AmbientLight;
 import javafx.scene.PerspectiveCamera;
 import javafx.scene.PointLight;
@@ -33,16 +34,21 @@ import javafx.scene.paint.PhongMaterial;
 import javafx.scene.shape.MeshView;
 import javafx.scene.shape.TriangleMesh;
 import javafx.scene.shape.VertexFormat;
+import javafx.scene.transform.Affine;
 import javafx.scene.transform.Rotate;
+import javafx.scene.transform.Scale;
+import javafx.scene.transform.Transform;
 import javafx.scene.transform.Translate;
 import javafx.stage.Stage;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.SynchronousQueue;
@@ -67,11 +73,14 @@ public class EngineFx implements Engine3d {
   private NodeFx camera;
   private Supplier<String> textSupplier;
   private Map<BufferedImage, Image> imageCache = new HashMap<>();
+  private Map<Obj, TriangleMesh> meshCache = new WeakHashMap<>(); // shared by the mesh views of the obj
   private BufferedImage backgroundImage;
   private Scene scene;
   private javafx.scene.Group root;
   private AmbientLight ambientLight;
   private PerspectiveCamera perspectiveCamera;
+  private final List<ShapeFx> lodShapes = new ArrayList<>();
+  private final FrameStats stats = new FrameStats(); // the timings, JavaFX does not report the counters
 
   public static TriangleMesh loadObj(Obj obj) {
     int[] faces = Arrays.copyOf(obj.face, obj.face.length);
@@ -191,7 +200,40 @@ public class EngineFx implements Engine3d {
 
   @Override
   public ShapeFx shape(Obj obj) {
-    return new ShapeFx(obj);
+    return new ShapeFx(new Obj[]{obj});
+  }
+
+  @Override
+  public ShapeFx shape(Obj[] lods) {
+    if (lods.length == 0) throw new IllegalArgumentException("no levels of detail");
+    ShapeFx shape = new ShapeFx(lods);
+    if (lods.length > 1) lodShapes.add(shape);
+    return shape;
+  }
+
+  @Override
+  public InstancesFx instances(Obj obj, int capacity) {
+    if (capacity < 0) throw new IllegalArgumentException("capacity " + capacity);
+    return new InstancesFx(obj, capacity);
+  }
+
+  /**
+   * Picks the mesh levels of detail by the screen area of the bounding sphere, as EngineNbs.projectedArea does.
+   */
+  private void updateLods() {
+    double fov = perspectiveCamera.getFieldOfView() / 360 * Math.PI;
+    double focalLength = (perspectiveCamera.isVerticalFieldOfView() ? imageHeight : imageWidth) / 2.0 / Math.tan(fov);
+    for (ShapeFx shape : lodShapes) {
+      Transform t = shape.node.getLocalToSceneTransform();
+      double scale = Math.sqrt(Math.max(t.getMxx() * t.getMxx() + t.getMyx() * t.getMyx() + t.getMzx() * t.getMzx(),
+          Math.max(t.getMxy() * t.getMxy() + t.getMyy() * t.getMyy() + t.getMzy() * t.getMzy(),
+              t.getMxz() * t.getMxz() + t.getMyz() * t.getMyz() + t.getMzz() * t.getMzz())));
+      double radius = shape.radius * scale;
+      double distance = perspectiveCamera.sceneToLocal(t.transform(shape.center)).getZ(); // view depth
+      double area = distance - radius <= perspectiveCamera.getNearClip() ? Double.POSITIVE_INFINITY
+          : Math.PI * Math.pow(focalLength * radius / distance, 2);
+      ((MeshView) shape.node).setMesh(shape.meshes[MeshLod.level(shape.lods, area)]);
+    }
   }
 
   @Override
@@ -227,13 +269,57 @@ public class EngineFx implements Engine3d {
     return this;
   }
 
+  /**
+   * One affine per node instead of the translate and rotate properties, each of them notifies its listeners.
+   */
+  @Override
+  public EngineFx transforms(Node[] nodes, double[] transforms) {
+    if (transforms.length < nodes.length * TRANSFORM_STRIDE) throw new IllegalArgumentException();
+    for (int i = 0, j = 0; i < nodes.length; i++, j += TRANSFORM_STRIDE) {
+      NodeFx node = (NodeFx) nodes[i];
+      double x = transforms[j], y = -transforms[j + 1], z = -transforms[j + 2]; // y and z axes flipped
+      double yaw = transforms[j + 3] * 2 * Math.PI;
+      double pitch = transforms[j + 4] * 2 * Math.PI;
+      double roll = transforms[j + 5] * 2 * Math.PI;
+      double cy = Math.cos(yaw), sy = Math.sin(yaw);
+      double cp = Math.cos(pitch), sp = Math.sin(pitch);
+      double cr = Math.cos(roll), sr = Math.sin(roll);
+      // translate, rotate y, rotate x, rotate z, the same as the properties
+      node.affine(cy * cr + sy * sp * sr, -cy * sr + sy * sp * cr, sy * cp, x,
+          cp * sr, cp * cr, -sp, y,
+          -sy * cr + cy * sp * sr, sy * sr + cy * sp * cr, cy * cp, z);
+      if (node.euler == null) node.euler = new double[TRANSFORM_STRIDE];
+      System.arraycopy(transforms, j, node.euler, 0, TRANSFORM_STRIDE);
+    }
+    return this;
+  }
+
+  @Override
+  public EngineFx matrices(Node[] nodes, double[] matrices) {
+    if (matrices.length < nodes.length * MATRIX_STRIDE) throw new IllegalArgumentException();
+    for (int i = 0, j = 0; i < nodes.length; i++, j += MATRIX_STRIDE) {
+      NodeFx node = (NodeFx) nodes[i];
+      double[] m = matrices;
+      // y and z axes flipped on both sides
+      node.affine(m[j], -m[j + 1], -m[j + 2], m[j + 3],
+          -m[j + 4], m[j + 5], m[j + 6], -m[j + 7],
+          -m[j + 8], m[j + 9], m[j + 10], -m[j + 11]);
+      node.euler = null;
+    }
+    return this;
+  }
+
   @Override
   public void update() {
+    long start = System.nanoTime();
+    updateLods();
+    long scened = System.nanoTime();
     JavaFx.App.scene = this.scene;
     try {
       JavaFx.App.io.put(this);
       JavaFx.App.io.take();
     } catch (InterruptedException ignore) {}
+    long presented = System.nanoTime();
     int[] data = new int[imageWidth * imageHeight];
     JavaFx.App.snapshot.getPixelReader()
         .getPixels(0, 0, imageWidth, imageHeight, PixelFormat.getIntArgbInstance(), data, 0, imageWidth);
@@ -243,6 +329,18 @@ public class EngineFx implements Engine3d {
       graphics.setColor(java.awt.Color.DARK_GRAY);
       graphics.drawString(textSupplier.get(), 2, imageHeight - 4);
     }
+    long end = System.nanoTime();
+    stats.clear().frames++;
+    stats.sceneNanos = scened - start;
+    stats.presentNanos = presented - scened;
+    stats.blitNanos = end - presented;
+    stats.frameNanos = end - start;
+    stats.pixels = (long) imageWidth * imageHeight;
+  }
+
+  @Override
+  public FrameStats stats() {
+    return stats;
   }
 
   @Override
@@ -294,6 +392,9 @@ public class EngineFx implements Engine3d {
     private Rotate rx = new Rotate(0.0, Rotate.X_AXIS);
     private Rotate ry = new Rotate(0.0, Rotate.Y_AXIS);
     private Rotate rz = new Rotate(0.0, Rotate.Z_AXIS);
+    private Affine affine; // before t, set by transforms() and matrices(), the properties are zero meanwhile
+    private boolean affineActive;
+    private double[] euler; // of the affine set by transforms(), null for matrices()
 
     private NodeFx(javafx.scene.Node node) {
       node.getTransforms().addAll(t, ry, rx, rz);
@@ -302,8 +403,35 @@ public class EngineFx implements Engine3d {
       this.group.getChildren().add(this.node);
     }
 
+    private void affine(double mxx, double mxy, double mxz, double tx, double myx, double myy, double myz, double ty,
+        double mzx, double mzy, double mzz, double tz) {
+      if (affine == null) {
+        affine = new Affine();
+        node.getTransforms().add(node.getTransforms().indexOf(t), affine);
+      }
+      if (!affineActive) {
+        t.setX(0); t.setY(0); t.setZ(0);
+        ry.setAngle(0); rx.setAngle(0); rz.setAngle(0);
+        affineActive = true;
+      }
+      affine.setToTransform(mxx, mxy, mxz, tx, myx, myy, myz, ty, mzx, mzy, mzz, tz);
+    }
+
+    /**
+     * Back to the properties, keeping the values of transforms().
+     */
+    private void leaveAffine() {
+      if (!affineActive) return;
+      affineActive = false;
+      affine.setToIdentity();
+      if (euler == null) return;
+      t.setX(euler[0]); t.setY(-euler[1]); t.setZ(-euler[2]);
+      ry.setAngle(euler[3] * 360); rx.setAngle(euler[4] * 360); rz.setAngle(euler[5] * 360);
+    }
+
     @Override
     public NodeFx translation(double x, double y, double z) {
+      leaveAffine();
       t.setX(x);
       t.setY(-y);
       t.setZ(-z);
@@ -312,6 +440,7 @@ public class EngineFx implements Engine3d {
 
     @Override
     public NodeFx rotation(double y, double p, double r) {
+      leaveAffine();
       ry.setAngle(y * 360); // negative, the yaw axis directed towards the bottom, multiply by negative, y axis flipped
       rx.setAngle(p * 360);
       rz.setAngle(r * 360); // negative, the longitudinal axis directed forward, multiply by negative, z axis flipped
@@ -325,6 +454,9 @@ public class EngineFx implements Engine3d {
       ry = new Rotate(0.0, Rotate.Y_AXIS);
       rz = new Rotate(0.0, Rotate.Z_AXIS);
       node.getTransforms().addAll(0, List.of(t, ry, rx, rz)); // add a new empty transformation
+      affine = null; // kept in the pivot
+      affineActive = false;
+      euler = null;
       return this;
     }
 
@@ -347,13 +479,60 @@ public class EngineFx implements Engine3d {
     }
   }
 
+  /**
+   * The image multiplied by the color, the same image for white.
+   */
+  private static Image tinted(Image image, int color) {
+    if ((color & 0xFFFFFF) == 0xFFFFFF) return image;
+    double rMul = (color >> 16 & 0xFF) / 255.0;
+    double gMul = (color >> 8 & 0xFF) / 255.0;
+    double bMul = (color & 0xFF) / 255.0;
+    int width = (int) image.getWidth();
+    int height = (int) image.getHeight();
+    int[] data = new int[width * height];
+    image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), data, 0, width);
+    for (int i = 0; i < data.length; i++) {
+      double r = rMul * (data[i] >> 16 & 0xFF);
+      double g = gMul * (data[i] >> 8 & 0xFF);
+      double b = bMul * (data[i] & 0xFF);
+      data[i] = 0xFF000000 | (int) r << 16 | (int) g << 8 | (int) b;
+    }
+    WritableImage writableImage = new WritableImage(width, height);
+    writableImage.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), data, 0, width);
+    return writableImage;
+  }
+
   private class ShapeFx extends NodeFx implements Shape {
 
     private PhongMaterial material;
-
-    public ShapeFx(Obj obj) {
-      super(new MeshView(loadObj(obj)));
+    private final Obj[] lods;
+    private final TriangleMesh[] meshes;
+    private final Point3D center;
+    private final double radius;
+
+    public ShapeFx(Obj[] lods) {
+      super(new MeshView());
+      this.lods = lods;
+      this.meshes = Arrays.stream(lods).map(o -> meshCache.computeIfAbsent(o, EngineFx::loadObj))
+          .toArray(TriangleMesh[]::new);
+      Obj obj = lods[0];
+      double[] min = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+      double[] max = {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+      for (int i = 0; i < obj.vertex.length; i++) {
+        min[i % 3] = Math.min(min[i % 3], obj.vertex[i]);
+        max[i % 3] = Math.max(max[i % 3], obj.vertex[i]);
+      }
+      // the sphere of EngineNbs, around the center of the bounding box
+      double[] c = {(min[0] + max[0]) / 2, (min[1] + max[1]) / 2, (min[2] + max[2]) / 2};
+      double r2 = 0;
+      for (int i = 0; i < obj.vertex.length; i += 3) {
+        double dx = obj.vertex[i] - c[0], dy = obj.vertex[i + 1] - c[1], dz = obj.vertex[i + 2] - c[2];
+        r2 = Math.max(r2, dx * dx + dy * dy + dz * dz);
+      }
+      this.center = new Point3D(c[0], -c[1], -c[2]); // the meshes are y and z flipped, see loadObj
+      this.radius = Math.sqrt(r2);
       MeshView meshView = (MeshView) this.node;
+      meshView.setMesh(meshes[0]);
       material = new PhongMaterial();
       if (obj.image != null) {
         material.setDiffuseMap(imageCache.computeIfAbsent(obj.image, EngineFx::loadImg));
@@ -381,25 +560,7 @@ public class EngineFx implements Engine3d {
     public ShapeFx selfIllumination(int color) {
       Image image = material.getDiffuseMap();
       material.setDiffuseMap(null);
-      if ((color & 0xFFFFFF) != 0xFFFFFF) {
-        double rMul = (color >> 16 & 0xFF) / 255.0;
-        double gMul = (color >> 8 & 0xFF) / 255.0;
-        double bMul = (color & 0xFF) / 255.0;
-        int width = (int) image.getWidth();
-        int height = (int) image.getHeight();
-        int[] data = new int[width * height];
-        image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), data, 0, width);
-        for (int i = 0; i < data.length; i++) {
-          double r = rMul * (data[i] >> 16 & 0xFF);
-          double g = gMul * (data[i] >> 8 & 0xFF);
-          double b = bMul * (data[i] & 0xFF);
-          data[i] = 0xFF000000 | (int) r << 16 | (int) g << 8 | (int) b;
-        }
-        WritableImage writableImage = new WritableImage(width, height);
-        writableImage.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), data, 0, width);
-        image = writableImage;
-      }
-      material.setSelfIlluminationMap(image);
+      material.setSelfIlluminationMap(tinted(image, color));
       material.setDiffuseColor(Color.BLACK);
       return this;
     }
@@ -416,6 +577,124 @@ public class EngineFx implements Engine3d {
     }
   }
 
+  /**
+   * Mesh views sharing one TriangleMesh and one material per color, javafx 11 has no instanced drawing.
+   */
+  private class InstancesFx extends NodeFx implements Instances {
+
+    private final Obj obj;
+    private final double[] transforms;
+    private final int[] colors;
+    private final MeshView[] meshViews;
+    private final Map<Integer, PhongMaterial> materials = new HashMap<>();
+    private Color specularColor; // the material of all the colors, none if null
+    private double specularPower;
+    private Image selfIlluminationMap;
+    private Image bumpMap;
+
+    public InstancesFx(Obj obj, int capacity) {
+      super(new javafx.scene.Group());
+      this.obj = obj;
+      transforms = new double[capacity * STRIDE];
+      colors = new int[capacity];
+      Arrays.fill(colors, -1);
+      meshViews = new MeshView[capacity];
+      TriangleMesh mesh = meshCache.computeIfAbsent(obj, EngineFx::loadObj);
+      for (int i = 0; i < capacity; i++) {
+        transforms[i * STRIDE + 6] = 1;
+        meshViews[i] = new MeshView(mesh);
+        meshViews[i].getTransforms().addAll(new Translate(), new Rotate(0.0, Rotate.Y_AXIS),
+            new Rotate(0.0, Rotate.X_AXIS), new Rotate(0.0, Rotate.Z_AXIS), new Scale());
+        meshViews[i].setVisible(false);
+      }
+      ((javafx.scene.Group) node).getChildren().addAll(meshViews);
+    }
+
+    private PhongMaterial material(int color) {
+      PhongMaterial material = new PhongMaterial(color(color));
+      if (obj.image != null) material.setDiffuseMap(imageCache.computeIfAbsent(obj.image, EngineFx::loadImg));
+      return apply(material);
+    }
+
+    private PhongMaterial apply(PhongMaterial material) {
+      if (specularColor != null) {
+        material.setSpecularColor(specularColor);
+        material.setSpecularPower(specularPower);
+      }
+      if (selfIlluminationMap != null) {
+        material.setDiffuseMap(null);
+        material.setSelfIlluminationMap(selfIlluminationMap);
+        material.setDiffuseColor(Color.BLACK);
+      }
+      material.setBumpMap(bumpMap);
+      return material;
+    }
+
+    @Override
+    public InstancesFx setSpecular(int color, double power) {
+      specularColor = color(color);
+      specularPower = power;
+      materials.values().forEach(this::apply);
+      return this;
+    }
+
+    @Override
+    public InstancesFx selfIllumination(int color) {
+      selfIlluminationMap = tinted(imageCache.computeIfAbsent(obj.image, EngineFx::loadImg), color);
+      materials.values().forEach(this::apply);
+      return this;
+    }
+
+    @Override
+    public InstancesFx setBumpMap(BufferedImage image) {
+      bumpMap = imageCache.computeIfAbsent(image, EngineFx::loadImg);
+      materials.values().forEach(this::apply);
+      return this;
+    }
+
+    @Override
+    public InstancesFx setReflectionMap(BufferedImage image, double alpha, Node skybox) {
+      return this;
+    }
+
+    @Override
+    public double[] transforms() {
+      return transforms;
+    }
+
+    @Override
+    public int[] colors() {
+      return colors;
+    }
+
+    @Override
+    public InstancesFx setCount(int count) {
+      if (count < 0 || count > meshViews.length) throw new IllegalArgumentException("count " + count);
+      for (int i = 0; i < count; i++) {
+        if (colors[i] >>> 24 != 0xFF) throw new IllegalArgumentException("translucent color " + i);
+      }
+      for (int i = 0; i < meshViews.length; i++) {
+        MeshView meshView = meshViews[i];
+        meshView.setVisible(i < count);
+        if (i >= count) continue;
+        int j = i * STRIDE;
+        List<Transform> t = meshView.getTransforms();
+        ((Translate) t.get(0)).setX(transforms[j]);
+        ((Translate) t.get(0)).setY(-transforms[j + 1]);
+        ((Translate) t.get(0)).setZ(-transforms[j + 2]);
+        ((Rotate) t.get(1)).setAngle(transforms[j + 3] * 360);
+        ((Rotate) t.get(2)).setAngle(transforms[j + 4] * 360);
+        ((Rotate) t.get(3)).setAngle(transforms[j + 5] * 360);
+        Scale scale = (Scale) t.get(4);
+        scale.setX(transforms[j + 6]);
+        scale.setY(transforms[j + 6]);
+        scale.setZ(transforms[j + 6]);
+        meshView.setMaterial(materials.computeIfAbsent(colors[i], this::material));
+      }
+      return this;
+    }
+  }
+
   private class GroupFx extends NodeFx implements Group {
 
     public GroupFx() {
@@ -436,6 +715,11 @@ public class EngineFx implements Engine3d {
       return this;
     }
 
+    @Override
+    public LightFx setRange(double value) {
+      return this; // javafx 11 point light has no range
+    }
+
   }
 
 }
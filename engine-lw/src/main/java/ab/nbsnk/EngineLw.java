@@ -25,6 +25,7 @@ import org.lwjgl.system.MemoryUtil;
 import java.awt.image.BufferedImage;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 import java.util.function.Supplier;
 
 public class EngineLw implements Engine3d {
@@ -36,6 +37,7 @@ public class EngineLw implements Engine3d {
   private ByteBuffer pixelBuffer;
   private byte[] pixelBytes;
   private int[] pixelInts;
+  private final FrameStats stats = new FrameStats();
 
   @Override
   public EngineLw open(BufferedImage image) {
@@ -75,6 +77,16 @@ public class EngineLw implements Engine3d {
     return new ShapeLw();
   }
 
+  @Override
+  public ShapeLw shape(Obj[] lods) {
+    return new ShapeLw();
+  }
+
+  @Override
+  public InstancesLw instances(Obj obj, int capacity) {
+    return new InstancesLw(capacity);
+  }
+
   @Override
   public GroupLw group() {
     return new GroupLw();
@@ -105,8 +117,14 @@ public class EngineLw implements Engine3d {
     return this;
   }
 
+  @Override
+  public EngineLw matrices(Node[] nodes, double[] matrices) {
+    return this;
+  }
+
   @Override
   public void update() {
+    long start = System.nanoTime();
     GL15.glReadPixels(0, 0, screenWidth, screenHeight, GL15.GL_RGBA, GL15.GL_UNSIGNED_BYTE, pixelBuffer);
     pixelBuffer.get(pixelBytes);
     pixelBuffer.flip();
@@ -116,6 +134,16 @@ public class EngineLw implements Engine3d {
       j -= 8 * screenWidth;
     }
     screenImage.getRaster().setDataElements(0, 0, screenWidth, screenHeight, pixelInts);
+    long end = System.nanoTime();
+    stats.clear().frames++;
+    stats.blitNanos = end - start; // the read back is all it does so far
+    stats.frameNanos = end - start;
+    stats.pixels = (long) screenWidth * screenHeight;
+  }
+
+  @Override
+  public FrameStats stats() {
+    return stats;
   }
 
   @Override
@@ -189,6 +217,56 @@ public class EngineLw implements Engine3d {
     }
   }
 
+  public static class InstancesLw extends NodeLw implements Instances {
+    private final double[] transforms;
+    private final int[] colors;
+
+    public InstancesLw(int capacity) {
+      transforms = new double[capacity * STRIDE];
+      colors = new int[capacity];
+      Arrays.fill(colors, -1);
+    }
+
+    @Override
+    public double[] transforms() {
+      return transforms;
+    }
+
+    @Override
+    public int[] colors() {
+      return colors;
+    }
+
+    @Override
+    public InstancesLw setCount(int count) {
+      if (count < 0 || count > colors.length) throw new IllegalArgumentException("count " + count);
+      for (int i = 0; i < count; i++) {
+        if (colors[i] >>> 24 != 0xFF) throw new IllegalArgumentException("translucent color " + i);
+      }
+      return this;
+    }
+
+    @Override
+    public InstancesLw setSpecular(int color, double power) {
+      return this;
+    }
+
+    @Override
+    public InstancesLw selfIllumination(int color) {
+      return this;
+    }
+
+    @Override
+    public InstancesLw setBumpMap(BufferedImage image) {
+      return this;
+    }
+
+    @Override
+    public InstancesLw setReflectionMap(BufferedImage image, double alpha, Node skybox) {
+      return this;
+    }
+  }
+
   public static class GroupLw extends NodeLw implements Group {
 
   }
@@ -198,6 +276,11 @@ public class EngineLw implements Engine3d {
     public LightLw setColor(int color) {
       return this;
     }
+
+    @Override
+    public LightLw setRange(double value) {
+      return this;
+    }
   }
 
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk;
+
+/**
+ * Render scale per axis chosen from the measured frame times, and the bilinear upscale of the rendered image.
+ */
+public class DynamicResolution {
+  public static final int STEPS = 32; // the scale is a multiple of 1 / STEPS, a new size reallocates the buffers
+  public double targetNanos; // 0 disabled
+  public double minScale = 0.5;
+  public double maxScale = 1;
+  public double scale = 1;
+  public double averageNanos; // of the recent frames
+
+  /**
+   * Adjusts the scale after a frame, the rendering time goes with the square of it.
+   */
+  public void frame(long nanos) {
+    if (targetNanos <= 0) {
+      scale = 1;
+      return;
+    }
+    averageNanos = averageNanos == 0 ? nanos : averageNanos * 0.8 + nanos * 0.2;
+    double ratio = targetNanos / averageNanos;
+    if (ratio > 0.9 && ratio < 1.1) return; // close enough, no oscillation between the sizes
+    double s = scale * Math.sqrt(Math.min(Math.max(ratio, 0.5), 2)); // damped
+    s = Math.round(s * STEPS) / (double) STEPS;
+    s = Math.min(Math.max(s, minScale), maxScale);
+    if (s != scale) averageNanos = 0; // measured again at the new size
+    scale = s;
+  }
+
+  public int size(int size) {
+    return Math.max(1, (int) Math.round(size * scale));
+  }
+
+  /**
+   * Bilinear scaling of the argb pixels, the pixel centers of both images are aligned.
+   */
+  public static void upscale(int[] source, int sourceWidth, int sourceHeight, int[] target, int width, int height) {
+    int[] x0 = new int[width];
+    int[] fx = new int[width]; // 8 bit fraction
+    for (int x = 0; x < width; x++) {
+      double sx = Math.min(Math.max((x + 0.5) * sourceWidth / width - 0.5, 0), sourceWidth - 1);
+      x0[x] = (int) sx;
+      fx[x] = (int) Math.round((sx - x0[x]) * 256);
+    }
+    for (int y = 0; y < height; y++) {
+      double sy = Math.min(Math.max((y + 0.5) * sourceHeight / height - 0.5, 0), sourceHeight - 1);
+      int y0 = (int) sy;
+      int fy = (int) Math.round((sy - y0) * 256);
+      int row0 = y0 * sourceWidth;
+      int row1 = Math.min(y0 + 1, sourceHeight - 1) * sourceWidth;
+      int xy = y * width;
+      for (int x = 0; x < width; x++, xy++) {
+        int x1 = Math.min(x0[x] + 1, sourceWidth - 1);
+        int c00 = source[row0 + x0[x]];
+        int c01 = source[row0 + x1];
+        int c10 = source[row1 + x0[x]];
+        int c11 = source[row1 + x1];
+        int f = fx[x];
+        int color = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+          int top = (c00 >>> shift & 0xFF) * (256 - f) + (c01 >>> shift & 0xFF) * f;
+          int bottom = (c10 >>> shift & 0xFF) * (256 - f) + (c11 >>> shift & 0xFF) * f;
+          color |= (top * (256 - fy) + bottom * fy + (1 << 15)) >>> 16 << shift;
+        }
+        target[xy] = color;
+      }
+    }
+  }
+
+}
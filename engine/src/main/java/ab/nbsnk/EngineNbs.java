@@ -17,69 +17,68 @@
 
 package ab.nbsnk;
 
-import Jama.Matrix;
+import ab.nbsnk.math.Frustum;
+import ab.nbsnk.math.Mat;
+import ab.nbsnk.math.Sphere;
 import ab.nbsnk.nodes.Col;
 import ab.nbsnk.nodes.Pnt;
 
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Supplier;
 
 public class EngineNbs implements Engine3d {
 
-  public static final Matrix IDENTITY = new Matrix(new double[]{1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1}, 4);
+  private static final Mat IDENTITY = new Mat();
   private int imageWidth;
   private int imageHeight;
-  private int[] imageRaster;
   private Shader shader;
-  private BufferedImage image;
-  private int[] background;
+  private BufferedImage[] images = new BufferedImage[0]; // rendered in turns
+  private int[][] imageRasters; // the data buffers of the images, or copied into them
+  private boolean[] imageDirect;
+  private int imageIndex; // of the last rendered image
+  private int[] background; // of the render size
+  private int backgroundWidth;
+  private int backgroundHeight;
   private BufferedImage backgroundImage;
+  private final DynamicResolution dynamicResolution = new DynamicResolution();
+  private int[] scaledRaster; // rendered below the full size, upscaled into the image
+  private double[] shadingLod; // projected areas of phong, gouraud, lambert and the details, null if off
   private Set<NodeNbs> root = new HashSet<>();
+  private final List<NodeNbs> renderList = new ArrayList<>(); // visible nodes in the scene order, groups first
+  private int renderListShapes; // of the render list
+  private final RenderQueue<ShapeNbs> renderQueue = new RenderQueue<>(); // shapes in the frustum
+  private final Map<Mipmap, Integer> materials = new IdentityHashMap<>(); // sort key ids given in this frame
+  private final Stats stats = new Stats();
+  private final Frustum frustum = new Frustum();
+  private final Sphere viewBounds = new Sphere(); // camera space, for the occlusion test
+  private final List<ShapeNbs> postponed = new ArrayList<>(); // opaque shapes hidden in the last frame
+  private boolean renderListDirty = true;
+  private boolean worldDirty = true;
   private NodeNbs camera;
   private Supplier<String> textSupplier;
-  private Map<BufferedImage, int[]> imageCache = new HashMap<>();
+  private Map<BufferedImage, Mipmap> imageCache = new HashMap<>();
+  private Map<Obj, Mesh> meshCache = new WeakHashMap<>(); // by identity, Obj has no equals
+  private Map<BufferedImage, ReflectionMap> reflectionCache = new HashMap<>();
   private Col ambientColor = new Col();
   private double focalLength = 50;
 
-  public static Matrix multiply(Matrix matrix, double tx, double ty, double tz, double rx, double ry, double rz) {
-    Matrix t = new Matrix(new double[][]{
-        {1, 0, 0, tx},
-        {0, 1, 0, ty},
-        {0, 0, 1, tz},
-        {0, 0, 0, 1},
-    });
-    double s = Math.sin(2 * Math.PI * rz);
-    double c = Math.cos(2 * Math.PI * rz);
-    Matrix mrz = new Matrix(new double[][]{
-        {c,-s, 0, 0},
-        {s, c, 0, 0},
-        {0, 0, 1, 0},
-        {0, 0, 0, 1},
-    });
-    s = Math.sin(2 * Math.PI * rx);
-    c = Math.cos(2 * Math.PI * rx);
-    Matrix mrx = new Matrix(new double[][]{
-        {1, 0, 0, 0},
-        {0, c,-s, 0},
-        {0, s, c, 0},
-        {0, 0, 0, 1},
-    });
-    s = Math.sin(2 * Math.PI * ry);
-    c = Math.cos(2 * Math.PI * ry);
-    Matrix mry = new Matrix(new double[][]{
-        {c, 0, s, 0},
-        {0, 1, 0, 0},
-        {-s,0, c, 0},
-        {0, 0, 0, 1},
-    });
-    return matrix.times(t).times(mry).times(mrx).times(mrz);
+  public static Mat multiply(Mat matrix, double tx, double ty, double tz, double rx, double ry, double rz) {
+    Mat mat = new Mat().set(tx, ty, tz, rx, ry, rz);
+    return mat.mul(matrix, mat);
   }
 
   public EngineNbs() {
@@ -89,21 +88,70 @@ public class EngineNbs implements Engine3d {
 
   @Override
   public EngineNbs open(BufferedImage image) {
-    this.imageWidth = image.getWidth();
-    this.imageHeight = image.getHeight();
-    this.imageRaster = new int[imageWidth * imageHeight];
-    this.image = image;
+    return open(new BufferedImage[]{image});
+  }
+
+  /**
+   * Double buffering, update() renders into the images in turns, image() is the last rendered one
+   * and can be displayed while the next one is rendered. The images must be of the same size.
+   */
+  public EngineNbs open(BufferedImage front, BufferedImage back) {
+    return open(new BufferedImage[]{front, back});
+  }
+
+  private EngineNbs open(BufferedImage[] images) {
+    this.imageWidth = images[0].getWidth();
+    this.imageHeight = images[0].getHeight();
+    this.images = images;
+    this.imageRasters = new int[images.length][];
+    this.imageDirect = new boolean[images.length];
+    for (int i = 0; i < images.length; i++) {
+      if (images[i].getWidth() != imageWidth || images[i].getHeight() != imageHeight) {
+        throw new IllegalArgumentException("image size");
+      }
+      imageRasters[i] = dataBuffer(images[i]);
+      imageDirect[i] = imageRasters[i] != null;
+      if (!imageDirect[i]) imageRasters[i] = new int[imageWidth * imageHeight];
+    }
+    this.imageIndex = images.length - 1;
     applyBackground();
     return this;
   }
 
+  /**
+   * The pixel array of TYPE_INT_RGB and TYPE_INT_ARGB images to render into without a copy, null for other images.
+   */
+  static int[] dataBuffer(BufferedImage image) {
+    int type = image.getType();
+    if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) return null;
+    WritableRaster raster = image.getRaster();
+    if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) return null; // subimage
+    if (((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() != image.getWidth()) return null;
+    DataBufferInt dataBuffer = (DataBufferInt) raster.getDataBuffer();
+    return dataBuffer.getOffset() == 0 ? dataBuffer.getData() : null;
+  }
+
+  /**
+   * The last rendered image.
+   */
+  public BufferedImage image() {
+    return images[imageIndex];
+  }
+
   private void applyBackground() {
+    applyBackground(imageWidth, imageHeight);
+  }
+
+  private void applyBackground(int width, int height) {
     background = null;
-    if (imageWidth == 0 || imageHeight == 0 || backgroundImage == null) return;
-    BufferedImage image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
-    image.getGraphics().drawImage(backgroundImage, 0, 0, null);
-    background = new int[imageWidth * imageHeight];
-    image.getRaster().getDataElements(0, 0, imageWidth, imageHeight, background);
+    backgroundWidth = width;
+    backgroundHeight = height;
+    if (width == 0 || height == 0 || backgroundImage == null) return;
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    image.getGraphics().drawImage(backgroundImage, 0, 0, backgroundImage.getWidth() * width / imageWidth,
+        backgroundImage.getHeight() * height / imageHeight, null);
+    background = new int[width * height];
+    image.getRaster().getDataElements(0, 0, width, height, background);
   }
 
   @Override
@@ -116,7 +164,29 @@ public class EngineNbs implements Engine3d {
   @Override
   public ShapeNbs shape(Obj obj) {
     Obj.verify(obj);
-    return new ShapeNbs(obj);
+    return new ShapeNbs(new Obj[]{obj});
+  }
+
+  @Override
+  public ShapeNbs shape(Obj[] lods) {
+    if (lods.length == 0) throw new IllegalArgumentException("no levels of detail");
+    for (Obj obj : lods) Obj.verify(obj);
+    return new ShapeNbs(lods);
+  }
+
+  @Override
+  public InstancesNbs instances(Obj obj, int capacity) {
+    if (capacity < 0) throw new IllegalArgumentException("capacity " + capacity);
+    Obj.verify(obj);
+    return new InstancesNbs(obj, capacity);
+  }
+
+  /**
+   * Frozen copy of the obj with its derived data, shared by all the shapes of the obj.
+   * Created by the first shape, later changes of the obj are not seen.
+   */
+  public Mesh mesh(Obj obj) {
+    return meshCache.computeIfAbsent(obj, Mesh::of);
   }
 
   @Override
@@ -152,73 +222,387 @@ public class EngineNbs implements Engine3d {
     return this;
   }
 
-  private static void dfs(Set<NodeNbs> nodes, Matrix tm, Map<NodeNbs, Matrix> map) {
+  @Override
+  public EngineNbs transforms(Node[] nodes, double[] transforms) {
+    if (transforms.length < nodes.length * TRANSFORM_STRIDE) throw new IllegalArgumentException();
+    for (int i = 0, j = 0; i < nodes.length; i++, j += TRANSFORM_STRIDE) {
+      NodeNbs node = (NodeNbs) nodes[i];
+      node.tx = transforms[j];
+      node.ty = transforms[j + 1];
+      node.tz = transforms[j + 2];
+      node.ry = -transforms[j + 3]; // the same as rotation()
+      node.rx = transforms[j + 4];
+      node.rz = -transforms[j + 5];
+      node.matrix = false;
+      node.invalidate();
+    }
+    return this;
+  }
+
+  @Override
+  public EngineNbs matrices(Node[] nodes, double[] matrices) {
+    if (matrices.length < nodes.length * MATRIX_STRIDE) throw new IllegalArgumentException();
+    for (int i = 0, j = 0; i < nodes.length; i++, j += MATRIX_STRIDE) {
+      NodeNbs node = (NodeNbs) nodes[i];
+      Mat m = node.local;
+      m.m00 = matrices[j]; m.m01 = matrices[j + 1]; m.m02 = matrices[j + 2]; m.m03 = matrices[j + 3];
+      m.m10 = matrices[j + 4]; m.m11 = matrices[j + 5]; m.m12 = matrices[j + 6]; m.m13 = matrices[j + 7];
+      m.m20 = matrices[j + 8]; m.m21 = matrices[j + 9]; m.m22 = matrices[j + 10]; m.m23 = matrices[j + 11];
+      m.mul(m, node.pivot);
+      node.tx = 0; node.ty = 0; node.tz = 0;
+      node.rx = 0; node.ry = 0; node.rz = 0;
+      node.matrix = true;
+      node.invalidate();
+    }
+    return this;
+  }
+
+  /**
+   * Number of threads rasterizing the screen tiles, 1 to draw on the caller's thread.
+   */
+  public EngineNbs setParallelism(int parallelism) {
+    if (parallelism < 1) throw new IllegalArgumentException();
+    if (shader.pool != null) shader.pool.shutdown();
+    shader.pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+    return this;
+  }
+
+  /**
+   * Deferred shading of the opaque phong shapes, every covered pixel is lit once.
+   * The transparent shapes are still drawn forward.
+   */
+  public EngineNbs setDeferred(boolean deferred) {
+    shader.enableDeferred = deferred;
+    return this;
+  }
+
+  /**
+   * Hierarchical z occlusion culling of the faces per block and of the shapes, on by default.
+   */
+  public EngineNbs setOcclusion(boolean occlusion) {
+    shader.enableOcclusion = occlusion;
+    return this;
+  }
+
+  /**
+   * Depth buffer of 8 bytes per pixel by default, FLOAT and INT24 take 4.
+   */
+  public EngineNbs setDepthFormat(Shader.DepthFormat depthFormat) {
+    shader.depthFormat = depthFormat;
+    return this;
+  }
+
+  /**
+   * Recomputes the world transforms of the dirty nodes and their subtrees, the clean branches are not visited.
+   */
+  private static void updateWorld(Set<NodeNbs> nodes, Mat parent, boolean force) {
     for (NodeNbs node : nodes) {
       if (!node.visible) continue;
-      Matrix t = node.multiply(tm);
+      boolean dirty = force || node.dirty;
+      if (dirty) {
+        if (!node.matrix) {
+          node.local.set(node.tx, node.ty, node.tz, node.rx, node.ry, node.rz);
+          node.local.mul(node.local, node.pivot);
+        }
+        node.world.mul(parent, node.local);
+        node.dirty = false;
+        if (node instanceof InstancesNbs) ((InstancesNbs) node).updateWorld();
+        else if (node instanceof ShapeNbs) node.bounds.set(node.world, ((ShapeNbs) node).meshes[0].bounds);
+      }
+      if (node instanceof GroupNbs && (dirty || node.dirtyChild)) {
+        Set<NodeNbs> group = ((GroupNbs) node).groupNode;
+        updateWorld(group, node.world, dirty);
+        node.bounds.empty();
+        for (NodeNbs child : group) if (child.visible) node.bounds.add(child.bounds);
+      }
+      node.dirtyChild = false;
+    }
+  }
+
+  private static void updateRenderList(Set<NodeNbs> nodes, List<NodeNbs> list) {
+    for (NodeNbs node : nodes) {
+      if (!node.visible) continue;
+      list.add(node);
       if (node instanceof GroupNbs) {
-        dfs(((GroupNbs) node).groupNode, t, map);
-        continue;
+        updateRenderList(((GroupNbs) node).groupNode, list);
+        ((GroupNbs) node).renderListEnd = list.size();
       }
-      map.put(node, t);
     }
   }
 
-  private void shaderAdd(ShapeNbs shape, Matrix matrix, Matrix cameraMatrix, Map<NodeNbs, Matrix> map) {
+  private void shaderAdd(ShapeNbs shape, Mat matrix, Mat cameraMatrix) {
     Shader.Illumination enableIllumination = shader.enableIllumination;
-    if (shape.selfIllumination) shader.enableIllumination = Shader.Illumination.NONE;
     shader.ambientColor = this.ambientColor;
     shader.diffuseColor = shape.diffuseColor;
     shader.specularColor = shape.specularColor;
     shader.specularPower = shape.specularPower;
     shader.textureRaster = shape.textureRaster;
+    shader.textureMipmap = shape.textureMipmap;
     shader.textureWidth = shape.textureWidth;
     shader.textureHeight = shape.textureHeight;
-    shader.bumpRaster = shape.bumpRaster;
-    shader.bumpWidth = shape.bumpWidth;
-    shader.bumpHeight = shape.bumpHeight;
-    shader.tangentBitangent = shape.tangentBitangent;
-    shader.reflectionRaster = shape.reflectionRaster;
-    shader.reflectionWidth = shape.reflectionWidth;
-    shader.reflectionHeight = shape.reflectionHeight;
-    shader.reflectionAlpha = shape.reflectionAlpha;
-    shader.reflectionMatrix = cameraMatrix.times(map.getOrDefault(shape.reflectionSkybox, IDENTITY)).inverse();
-    shader.add(shape.obj, cameraMatrix.times(matrix));
-    if (shape.selfIllumination) shader.enableIllumination = enableIllumination;
+    NodeNbs skybox = shape.reflectionSkybox;
+    if (skybox == null || !skybox.listed) shader.reflectionMatrix.inverse(cameraMatrix);
+    else shader.reflectionMatrix.inverse(shader.reflectionMatrix.mul(cameraMatrix, skybox.world));
+    if (shape instanceof InstancesNbs) {
+      ((InstancesNbs) shape).shaderAdd(cameraMatrix, enableIllumination);
+    } else {
+      int level = lod(shape, viewBounds.set(cameraMatrix, ((NodeNbs) shape).bounds), enableIllumination);
+      shader.add(shape.meshes[level], shape.modelView.mul(cameraMatrix, matrix), shape.vertexStage[level]);
+    }
+    shader.enableIllumination = enableIllumination;
+  }
+
+  /**
+   * Shading and mesh levels of detail by the view bounds, sets the illumination and the detail maps of the shader,
+   * returns the mesh level.
+   */
+  private int lod(ShapeNbs shape, Sphere bounds, Shader.Illumination enableIllumination) {
+    shader.enableIllumination = enableIllumination;
+    boolean details = true;
+    boolean lods = shape.objs.length > 1;
+    double area = shadingLod != null || lods ? projectedArea(bounds) : 0;
+    if (shadingLod != null) {
+      Shader.Illumination lod = area >= shadingLod[0] ? Shader.Illumination.PHONG
+          : area >= shadingLod[1] ? Shader.Illumination.GOURAUD
+          : area >= shadingLod[2] ? Shader.Illumination.LAMBERT : Shader.Illumination.NONE;
+      // the global sysex setting is the best quality
+      if (lod != Shader.Illumination.PHONG && lod.compareTo(enableIllumination) < 0) shader.enableIllumination = lod;
+      details = area >= shadingLod[3];
+      if (!details && (shape.bumpMipmap != null || shape.reflectionMap != null)) stats.detailsDropped++;
+    }
+    if (shape.selfIllumination) shader.enableIllumination = Shader.Illumination.NONE;
+    stats.illuminations[shader.enableIllumination.ordinal()]++;
+    shader.bumpRaster = details ? shape.bumpRaster : null;
+    shader.bumpMipmap = details ? shape.bumpMipmap : null;
+    shader.bumpWidth = details ? shape.bumpWidth : 0;
+    shader.bumpHeight = details ? shape.bumpHeight : 0;
+    shader.reflectionMap = details ? shape.reflectionMap : null;
+    shader.reflectionAlpha = details ? shape.reflectionAlpha : 0;
+    int level = lods ? MeshLod.level(shape.objs, area) : 0;
+    if (level > 0) stats.lodShapes++;
+    return level;
+  }
+
+  /**
+   * Sort key material of the texture, numbered anew every frame, so the ids stay below the shape count
+   * and the textures of the removed shapes are released by the next frame.
+   */
+  private int material(Mipmap mipmap) {
+    if (mipmap == null) return 0;
+    Integer material = materials.get(mipmap);
+    if (material == null) {
+      material = materials.size() + 1; // 0 without a texture
+      materials.put(mipmap, material);
+    }
+    return material;
+  }
+
+  /**
+   * Screen area of the view bounding sphere in pixels, infinite if it reaches the near plane.
+   */
+  private double projectedArea(Sphere bounds) {
+    if (bounds.isEmpty()) return 0;
+    double distance = -bounds.z;
+    if (distance - bounds.r <= shader.nearClip) return Double.POSITIVE_INFINITY;
+    double radius = shader.focalLength * bounds.r / distance;
+    return Math.PI * radius * radius;
+  }
+
+  /**
+   * Shading level of detail by the screen area of the shape bounds in pixels. Shapes of at least phong are
+   * lit per pixel, gouraud per vertex, lambert per face, the smaller ones are not lit. The bump and reflection
+   * maps are dropped below details. The sysex illumination stays the best quality. Off by default.
+   */
+  public EngineNbs setShadingLod(double phong, double gouraud, double lambert, double details) {
+    if (!(phong >= gouraud && gouraud >= lambert && lambert >= 0 && details >= 0)) {
+      throw new IllegalArgumentException();
+    }
+    shadingLod = new double[]{phong, gouraud, lambert, details};
+    return this;
+  }
+
+  public EngineNbs setShadingLod(boolean enabled) {
+    if (!enabled) shadingLod = null;
+    else if (shadingLod == null) shadingLod = new double[]{64 * 64, 16 * 16, 4 * 4, 32 * 32};
+    return this;
+  }
+
+  /**
+   * Dynamic resolution, when update() takes longer than the target the frames are rendered smaller,
+   * down to minScale of the image per axis, and upscaled. The target 0 renders at the full size.
+   */
+  public EngineNbs setFrameTime(double targetMillis, double minScale, double maxScale) {
+    if (!(targetMillis >= 0 && minScale > 0 && minScale <= maxScale && maxScale <= 1)) {
+      throw new IllegalArgumentException();
+    }
+    dynamicResolution.targetNanos = targetMillis * 1_000_000;
+    dynamicResolution.minScale = minScale;
+    dynamicResolution.maxScale = maxScale;
+    dynamicResolution.scale = targetMillis == 0 ? 1 : Math.min(Math.max(dynamicResolution.scale, minScale), maxScale);
+    dynamicResolution.averageNanos = 0;
+    return this;
+  }
+
+  /**
+   * Render scale of the next frame per axis, 1 without the dynamic resolution.
+   */
+  public double scale() {
+    return dynamicResolution.scale;
   }
 
   @Override
   public void update() {
-    shader.cls(imageWidth, imageHeight);
-    shader.focalLength = this.focalLength / 24 * imageHeight;
-    if (background == null) {
-      Arrays.fill(imageRaster, -1);
-    } else {
-      System.arraycopy(background, 0, imageRaster, 0, imageWidth * imageHeight);
-    }
-    shader.imageRaster = this.imageRaster;
-    Map<NodeNbs, Matrix> map = new LinkedHashMap<>();
-    dfs(root, IDENTITY, map);
-    final Matrix cameraMatrix = map.get(this.camera).inverse();
-    map.entrySet().stream().filter(e -> e.getKey() instanceof LightNbs)
-        .forEach(e -> {
-          Matrix xyz = cameraMatrix.times(e.getValue()).times(new Matrix(new double[]{0, 0, 0, 1}, 4));
-          Pnt pnt = new Pnt(xyz.get(0, 0), xyz.get(1, 0), xyz.get(2, 0));
-          Col color = ((LightNbs) e.getKey()).color;
-          shader.addLight(pnt, color);
-        });
-    map.entrySet().stream()
-        .filter(entry -> entry.getKey() instanceof ShapeNbs && ((ShapeNbs) entry.getKey()).diffuseColor.a == 1)
-        .forEach(entry -> shaderAdd((ShapeNbs) entry.getKey(), entry.getValue(), cameraMatrix, map));
-    map.entrySet().stream()
-        .filter(entry -> entry.getKey() instanceof ShapeNbs && ((ShapeNbs) entry.getKey()).diffuseColor.a < 1)
-        .forEach(entry -> shaderAdd((ShapeNbs) entry.getKey(), entry.getValue(), cameraMatrix, map));
-    image.getRaster().setDataElements(0, 0, imageWidth, imageHeight, imageRaster);
+    long start = System.nanoTime();
+    int index = (imageIndex + 1) % images.length;
+    int width = dynamicResolution.size(imageWidth);
+    int height = dynamicResolution.size(imageHeight);
+    boolean scaled = width != imageWidth || height != imageHeight;
+    if (scaled && (scaledRaster == null || scaledRaster.length != width * height)) scaledRaster = new int[width * height];
+    if (width != backgroundWidth || height != backgroundHeight) applyBackground(width, height);
+    shader.imageRaster = scaled ? scaledRaster : imageRasters[index];
+    shader.cls(width, height);
+    shader.focalLength = this.focalLength / 24 * height;
+    shader.clearColor = -1;
+    shader.background = background;
+    if (worldDirty) {
+      updateWorld(root, IDENTITY, false);
+      worldDirty = false;
+    }
+    if (renderListDirty) {
+      for (NodeNbs node : renderList) node.listed = false;
+      renderList.clear();
+      updateRenderList(root, renderList);
+      renderListShapes = 0;
+      for (NodeNbs node : renderList) {
+        node.listed = true;
+        if (node instanceof ShapeNbs) renderListShapes++;
+      }
+      renderListDirty = false;
+    }
+    final Mat cameraMatrix = new Mat().inverse(camera.world);
+    Mat xyz = new Mat();
+    for (NodeNbs node : renderList) {
+      if (!(node instanceof LightNbs)) continue;
+      xyz.mul(cameraMatrix, node.world);
+      LightNbs light = (LightNbs) node;
+      shader.addLight(new Pnt(xyz.m03, xyz.m13, xyz.m23), light.color, light.range);
+    }
+    frustum.set(cameraMatrix, shader.focalLength, width, height, shader.nearClip, shader.farClip);
+    renderQueue.clear();
+    materials.clear();
+    for (int i = 0; i < renderList.size(); i++) {
+      NodeNbs node = renderList.get(i);
+      if (node instanceof GroupNbs) {
+        if (!frustum.intersects(node.bounds)) i = ((GroupNbs) node).renderListEnd - 1; // skip the subtree
+      } else if (node instanceof ShapeNbs && frustum.intersects(node.bounds)) {
+        ShapeNbs shape = (ShapeNbs) node;
+        double depth = frustum.depth(node.bounds);
+        renderQueue.add(shape, shape.diffuseColor.a < 1 ? RenderQueue.transparentKey(depth)
+            : RenderQueue.opaqueKey(depth, material(shape.textureMipmap)));
+      }
+    }
+    renderQueue.sort();
+    long sorted = System.nanoTime();
+    int size = renderQueue.size();
+    if (stats.sortKeys.length < size) stats.sortKeys = new long[Math.max(size, stats.sortKeys.length * 2)];
+    stats.sortKeyCount = size;
+    boolean opaque = true;
+    int occluded = 0;
+    postponed.clear();
+    Arrays.fill(stats.illuminations, 0);
+    stats.detailsDropped = 0;
+    stats.lodShapes = 0;
+    stats.instances = 0;
+    for (int i = 0; i < size; i++) {
+      long key = renderQueue.key(i);
+      stats.sortKeys[i] = key;
+      if (opaque && key >= RenderQueue.TRANSPARENT) {
+        occluded += endOpaque(i, cameraMatrix);
+        opaque = false;
+      }
+      ShapeNbs shape = renderQueue.get(i);
+      if (opaque && shape.occluded) {
+        postponed.add(shape); // tested again when the others are drawn
+      } else if (occluded(shape, cameraMatrix)) {
+        shape.occluded = true;
+        occluded++;
+      } else {
+        shaderAdd(shape, ((NodeNbs) shape).world, cameraMatrix);
+      }
+    }
+    if (opaque) occluded += endOpaque(size, cameraMatrix);
+    shader.flush();
+    shader.shadeDeferred();
+    shader.finish();
+    long rendered = System.nanoTime();
+    stats.frames++;
+    stats.sceneNanos = sorted - start;
+    stats.vertexNanos = shader.vertexNanos;
+    stats.rasterNanos = shader.rasterNanos;
+    stats.shadeNanos = shader.shadeNanos;
+    stats.presentNanos = 0;
+    stats.shapes = size - occluded;
+    stats.culledShapes = renderListShapes - size;
+    stats.occludedShapes = occluded;
+    stats.faces = shader.faces;
+    stats.backFaces = shader.backFaces;
+    stats.clippedFaces = shader.clippedFaces;
+    stats.pixelTests = shader.pixelTests;
+    stats.pixelRejects = shader.pixelRejects;
+    stats.pixelsShaded = shader.pixelsShaded;
+    stats.pixels = (long) width * height;
+    stats.scale = dynamicResolution.scale;
+    if (scaled) DynamicResolution.upscale(scaledRaster, width, height, imageRasters[index], imageWidth, imageHeight);
+    BufferedImage image = images[index];
+    if (!imageDirect[index]) image.setRGB(0, 0, imageWidth, imageHeight, imageRasters[index], 0, imageWidth);
+    imageIndex = index;
     if (textSupplier != null) {
       Graphics graphics = image.createGraphics();
       graphics.setColor(java.awt.Color.DARK_GRAY);
       graphics.drawString(textSupplier.get(), 2, imageHeight - 4);
     }
+    long end = System.nanoTime();
+    stats.blitNanos = end - rendered;
+    stats.frameNanos = end - start;
+    dynamicResolution.frame(stats.frameNanos);
+  }
+
+  /**
+   * Draws the postponed shapes that are not hidden by the other opaque ones, then flags the opaque shapes
+   * of the queue hidden in this frame, they skip the vertex stage in the next one until they show up.
+   * @return number of the postponed shapes still hidden
+   */
+  private int endOpaque(int end, Mat cameraMatrix) {
+    shader.flush();
+    int occluded = 0;
+    for (ShapeNbs shape : postponed) {
+      if (occluded(shape, cameraMatrix)) {
+        occluded++;
+      } else {
+        shape.occluded = false;
+        shaderAdd(shape, ((NodeNbs) shape).world, cameraMatrix);
+      }
+    }
+    shader.flush();
+    shader.shadeDeferred();
+    for (int i = 0; i < end; i++) {
+      ShapeNbs shape = renderQueue.get(i);
+      shape.occluded = occluded(shape, cameraMatrix);
+    }
+    return occluded;
+  }
+
+  private boolean occluded(ShapeNbs shape, Mat cameraMatrix) {
+    Sphere bounds = viewBounds.set(cameraMatrix, ((NodeNbs) shape).bounds);
+    return !bounds.isEmpty() && shader.occluded(bounds.x, bounds.y, bounds.z, bounds.r);
+  }
+
+  /**
+   * Counters of the last update() with the ones specific to this engine, the object is reused.
+   */
+  @Override
+  public Stats stats() {
+    return stats;
   }
 
   @Override
@@ -243,12 +627,20 @@ public class EngineNbs implements Engine3d {
 
   @Override
   public void close() {
-    this.image = null;
+    this.images = new BufferedImage[0];
+    this.imageRasters = null;
+    if (shader.pool != null) shader.pool.shutdown();
   }
 
   private class NodeNbs implements Node {
     private Set<NodeNbs> group;
-    private Matrix pivot = IDENTITY;
+    private NodeNbs parent; // group, null in the root
+    private Mat pivot = new Mat();
+    private final Mat local = new Mat();
+    private final Mat world = new Mat();
+    private final Sphere bounds = new Sphere(); // world, of the visible subtree for groups
+    private boolean dirty = true; // local changed, world of the subtree is stale
+    private boolean dirtyChild; // some node below is dirty
     private double tx;
     private double ty;
     private double tz;
@@ -256,15 +648,27 @@ public class EngineNbs implements Engine3d {
     private double ry;
     private double rz;
     private boolean visible = true;
+    private boolean matrix; // local set by matrices()
+    private boolean listed; // in the render list, the world is current
 
     private NodeNbs() {
       this.group = root;
       this.group.add(this);
+      renderListDirty = true;
+      invalidate();
+    }
+
+    private void invalidate() {
+      dirty = true;
+      worldDirty = true;
+      for (NodeNbs node = parent; node != null && !node.dirtyChild; node = node.parent) node.dirtyChild = true;
     }
 
     @Override
     public NodeNbs translation(double x, double y, double z) {
       tx = x; ty = y; tz = z;
+      matrix = false;
+      invalidate();
       return this;
     }
 
@@ -273,38 +677,55 @@ public class EngineNbs implements Engine3d {
       ry = -y; // negative, the yaw axis directed towards the bottom
       rx = p;
       rz = -r; // negative, the longitudinal axis directed forward
+      matrix = false;
+      invalidate();
       return this;
     }
 
     @Override
     public NodeNbs setPivot() {
-      pivot = this.multiply(IDENTITY);
+      Mat mat = new Mat().set(tx, ty, tz, rx, ry, rz);
+      pivot = matrix ? local.clone() : mat.mul(mat, pivot); // the matrix already has the pivot
       tx = 0; ty = 0; tz = 0;
       rx = 0; ry = 0; rz = 0;
+      matrix = false;
+      invalidate();
       return this;
     }
 
-    private Matrix multiply(Matrix matrix) {
-      return EngineNbs.multiply(matrix, this.tx, this.ty, this.tz, this.rx, this.ry, this.rz).times(this.pivot);
-    }
-
     @Override
     public NodeNbs connect(Group node) {
       Set<NodeNbs> group = ((GroupNbs) node).groupNode;
+      invalidate(); // the old group bounds
       this.group.remove(this);
       this.group = group;
       this.group.add(this);
+      this.parent = (NodeNbs) node;
+      renderListDirty = true;
+      invalidate();
       return this;
     }
 
     @Override
     public NodeNbs setVisible(boolean value) {
+      if (visible == value) return this;
       visible = value;
+      renderListDirty = true;
+      invalidate();
       return this;
     }
   }
 
-  private static int[] loadImg(BufferedImage image) {
+  private static Col diffuse(int color) {
+    Col diffuseColor = new Col(color);
+    // TODO: 2025-11-04 find out how to solve transparency formula without premultiplied alpha
+    diffuseColor.r /= diffuseColor.a;
+    diffuseColor.g /= diffuseColor.a;
+    diffuseColor.b /= diffuseColor.a;
+    return diffuseColor;
+  }
+
+  private static Mipmap loadImg(BufferedImage image) {
     int textureWidth = image.getWidth();
     int textureHeight = image.getHeight();
     int[] textureRaster = new int[textureWidth * textureHeight];
@@ -312,15 +733,18 @@ public class EngineNbs implements Engine3d {
     for (int y = 0; y < textureHeight; y++) {
       for (int x = 0; x < textureWidth; x++) textureRaster[y * textureWidth + x] = image.getRGB(x, y);
     }
-    return textureRaster;
+    return new Mipmap(textureRaster, textureWidth, textureHeight);
   }
 
   private class ShapeNbs extends NodeNbs implements Shape {
 
-    private final Obj obj;
+    private final Obj[] objs; // levels of detail, finest first
+    private boolean occluded; // hidden behind the opaque shapes in the last frame
     private int[] textureRaster;
     private int textureWidth;
     private int textureHeight;
+    private Mipmap textureMipmap;
+    private Mipmap bumpMipmap;
     private int[] bumpRaster;
     private int bumpWidth;
     private int bumpHeight;
@@ -328,30 +752,34 @@ public class EngineNbs implements Engine3d {
     private Col specularColor = new Col();
     private double specularPower = 32;
     private boolean selfIllumination;
-    private Pnt[] tangentBitangent;
-    private int[] reflectionRaster;
-    private int reflectionWidth;
-    private int reflectionHeight;
+    private final Mesh[] meshes;
+    private final VertexStage[] vertexStage;
+    private final Mat modelView = new Mat();
+    private ReflectionMap reflectionMap;
     private double reflectionAlpha;
-    private NodeNbs reflectionSkybox;
-
-    public ShapeNbs(Obj obj) {
-      this.obj = obj.clone();
+    private NodeNbs reflectionSkybox; // none while it is hidden
+
+    public ShapeNbs(Obj[] lods) {
+      this.meshes = new Mesh[lods.length];
+      this.objs = new Obj[lods.length];
+      this.vertexStage = new VertexStage[lods.length];
+      for (int i = 0; i < lods.length; i++) {
+        meshes[i] = mesh(lods[i]);
+        objs[i] = meshes[i].obj;
+        vertexStage[i] = new VertexStage();
+      }
+      Obj obj = lods[0];
       if (obj.image != null) {
         this.textureWidth = obj.image.getWidth();
         this.textureHeight = obj.image.getHeight();
-        this.textureRaster = imageCache.computeIfAbsent(obj.image, EngineNbs::loadImg);
+        this.textureMipmap = imageCache.computeIfAbsent(obj.image, EngineNbs::loadImg);
+        this.textureRaster = textureMipmap.raster[0];
       }
-      this.tangentBitangent = Shader.computeTangentBitangent(obj);
     }
 
     @Override
     public ShapeNbs setColor(int color) {
-      this.diffuseColor = new Col(color);
-      // TODO: 2025-11-04 find out how to solve transparency formula without premultiplied alpha
-      diffuseColor.r /= diffuseColor.a;
-      diffuseColor.g /= diffuseColor.a;
-      diffuseColor.b /= diffuseColor.a;
+      this.diffuseColor = diffuse(color);
       return this;
     }
 
@@ -370,6 +798,7 @@ public class EngineNbs implements Engine3d {
         int[] tr = new int[n];
         for (int i = 0; i < n; i++) tr[i] = new Col(textureRaster[i]).mul(mul).argb();
         textureRaster = tr;
+        textureMipmap = new Mipmap(tr, textureWidth, textureHeight);
       }
       selfIllumination = true;
       return this;
@@ -379,30 +808,162 @@ public class EngineNbs implements Engine3d {
     public ShapeNbs setBumpMap(BufferedImage image) {
       this.bumpWidth = image.getWidth();
       this.bumpHeight = image.getHeight();
-      this.bumpRaster = imageCache.computeIfAbsent(image, EngineNbs::loadImg);
+      this.bumpMipmap = imageCache.computeIfAbsent(image, EngineNbs::loadImg);
+      this.bumpRaster = bumpMipmap.raster[0];
       return this;
     }
 
     @Override
     public ShapeNbs setReflectionMap(BufferedImage image, double alpha, Node skybox) {
-      this.reflectionWidth = image.getWidth();
-      this.reflectionHeight = image.getHeight();
-      this.reflectionRaster = imageCache.computeIfAbsent(image, EngineNbs::loadImg);
+      this.reflectionMap = reflectionCache.computeIfAbsent(image, i -> new ReflectionMap(
+          imageCache.computeIfAbsent(i, EngineNbs::loadImg).raster[0], i.getWidth(), i.getHeight()));
       this.reflectionAlpha = alpha;
       this.reflectionSkybox = (NodeNbs) skybox;
       return this;
     }
   }
 
+  /**
+   * One shape drawn at every instance matrix, the levels of detail are picked per instance. The instances share
+   * the vertex stage of the shape. With tile parallelism the binned faces keep their stage until flush(), there
+   * the instances take turns in a few stages per level and the bins are flushed when all of them are in use.
+   */
+  private class InstancesNbs extends ShapeNbs implements Instances {
+
+    private static final int STAGES = 16; // per level when binned
+
+    private final double[] transforms;
+    private final int[] colors;
+    private final Col[] instanceColors;
+    private final int[] instanceArgb; // of instanceColors
+    private final Mat[] matrices; // world
+    private final Sphere[] instanceBounds; // world
+    private VertexStage[][] stages; // per level when binned, STAGES of them
+    private int count;
+
+    public InstancesNbs(Obj obj, int capacity) {
+      super(new Obj[]{obj});
+      transforms = new double[capacity * STRIDE];
+      colors = new int[capacity];
+      Arrays.fill(colors, -1);
+      instanceColors = new Col[capacity];
+      instanceArgb = new int[capacity];
+      matrices = new Mat[capacity];
+      instanceBounds = new Sphere[capacity];
+      for (int i = 0; i < capacity; i++) {
+        transforms[i * STRIDE + 6] = 1;
+        matrices[i] = new Mat();
+        instanceBounds[i] = new Sphere();
+      }
+    }
+
+    @Override
+    public double[] transforms() {
+      return transforms;
+    }
+
+    @Override
+    public int[] colors() {
+      return colors;
+    }
+
+    @Override
+    public InstancesNbs setCount(int count) {
+      if (count < 0 || count > colors.length) throw new IllegalArgumentException("count " + count);
+      for (int i = 0; i < count; i++) {
+        // drawn in the opaque pass of the shape
+        if (colors[i] >>> 24 != 0xFF) throw new IllegalArgumentException("translucent color " + i);
+      }
+      this.count = count;
+      for (int i = 0; i < count; i++) {
+        if (instanceColors[i] != null && instanceArgb[i] == colors[i]) continue;
+        instanceColors[i] = diffuse(colors[i]);
+        instanceArgb[i] = colors[i];
+      }
+      ((NodeNbs) this).invalidate();
+      return this;
+    }
+
+    @Override
+    public InstancesNbs setSpecular(int color, double power) {
+      super.setSpecular(color, power);
+      return this;
+    }
+
+    @Override
+    public InstancesNbs selfIllumination(int color) {
+      super.selfIllumination(color);
+      return this;
+    }
+
+    @Override
+    public InstancesNbs setBumpMap(BufferedImage image) {
+      super.setBumpMap(image);
+      return this;
+    }
+
+    @Override
+    public InstancesNbs setReflectionMap(BufferedImage image, double alpha, Node skybox) {
+      super.setReflectionMap(image, alpha, skybox);
+      return this;
+    }
+
+    private void updateWorld() {
+      NodeNbs node = this;
+      Sphere objBounds = ((ShapeNbs) this).meshes[0].bounds;
+      node.bounds.empty();
+      for (int i = 0; i < count; i++) {
+        int j = i * STRIDE;
+        // the same axes as rotation()
+        Mat m = matrices[i].set(transforms[j], transforms[j + 1], transforms[j + 2],
+            transforms[j + 4], -transforms[j + 3], -transforms[j + 5]);
+        double scale = transforms[j + 6];
+        if (scale != 1) {
+          m.m00 *= scale; m.m01 *= scale; m.m02 *= scale;
+          m.m10 *= scale; m.m11 *= scale; m.m12 *= scale;
+          m.m20 *= scale; m.m21 *= scale; m.m22 *= scale;
+        }
+        m.mul(node.world, m);
+        node.bounds.add(instanceBounds[i].set(m, objBounds));
+      }
+    }
+
+    private void shaderAdd(Mat cameraMatrix, Shader.Illumination enableIllumination) {
+      ShapeNbs shape = this;
+      boolean binned = shader.pool != null;
+      if (binned && stages == null) {
+        stages = new VertexStage[shape.meshes.length][STAGES];
+        for (VertexStage[] level : stages) for (int i = 0; i < STAGES; i++) level[i] = new VertexStage();
+      }
+      int used = 0; // stages since the last flush, the frames end with one
+      for (int i = 0; i < count; i++) {
+        if (!frustum.intersects(instanceBounds[i])) continue;
+        Sphere bounds = viewBounds.set(cameraMatrix, instanceBounds[i]);
+        if (shader.occluded(bounds.x, bounds.y, bounds.z, bounds.r)) continue;
+        stats.instances++;
+        int level = lod(shape, bounds, enableIllumination);
+        shader.diffuseColor = instanceColors[i];
+        if (binned && used == STAGES) {
+          shader.flush();
+          used = 0;
+        }
+        shader.add(shape.meshes[level], shape.modelView.mul(cameraMatrix, matrices[i]),
+            binned ? stages[level][used++] : shape.vertexStage[level]);
+      }
+    }
+  }
+
   private class GroupNbs extends NodeNbs implements Group {
 
     private Set<NodeNbs> groupNode = new HashSet<>();
+    private int renderListEnd;
 
   }
 
   private class LightNbs extends NodeNbs implements Light {
 
     private Col color = new Col(-1);
+    private double range = Double.POSITIVE_INFINITY;
 
     @Override
     public LightNbs setColor(int color) {
@@ -410,6 +971,13 @@ public class EngineNbs implements Engine3d {
       if (this.color.a != 1) throw new IllegalStateException();
       return this;
     }
+
+    @Override
+    public LightNbs setRange(double value) {
+      if (!(value > 0)) throw new IllegalArgumentException();
+      this.range = value;
+      return this;
+    }
   }
 
 }
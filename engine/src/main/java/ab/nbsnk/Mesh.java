@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk;
+
+import ab.nbsnk.math.Sphere;
+
+/**
+ * Obj with the data derived from it, shared by all the shapes of the obj. Neither is changed after creation.
+ */
+public class Mesh {
+  public static final int CLUSTER_SIZE = 64; // consecutive faces sharing a normal cone
+  public final Obj obj;
+  public final double[] tangentBitangent; // per face tangent xyz and bitangent xyz, null if not needed
+  public final Sphere bounds;
+  public final double[] plane; // per face, object space normal xyz and distance
+  public final double[] cluster; // center xyz, radius, cone axis xyz, cos and sin of the cone angle
+
+  /**
+   * Takes over the obj, the caller hands a copy of it.
+   */
+  public Mesh(Obj obj, double[] tangentBitangent) {
+    this.obj = obj;
+    this.tangentBitangent = tangentBitangent;
+    this.bounds = new Sphere().set(obj.vertex);
+    int[] face = obj.face;
+    double[] v = obj.vertex;
+    plane = new double[face.length / 9 * 4];
+    for (int i = 0, p = 0; i < face.length; i += 9, p += 4) {
+      int v0 = face[i] * 3;
+      int v1 = face[i + 3] * 3;
+      int v2 = face[i + 6] * 3;
+      double ax = v[v1] - v[v0], ay = v[v1 + 1] - v[v0 + 1], az = v[v1 + 2] - v[v0 + 2];
+      double bx = v[v2] - v[v0], by = v[v2 + 1] - v[v0 + 1], bz = v[v2 + 2] - v[v0 + 2];
+      double nx = ay * bz - az * by, ny = az * bx - ax * bz, nz = ax * by - ay * bx;
+      plane[p] = nx;
+      plane[p + 1] = ny;
+      plane[p + 2] = nz;
+      plane[p + 3] = -(nx * v[v0] + ny * v[v0 + 1] + nz * v[v0 + 2]);
+    }
+    int faces = face.length / 9;
+    cluster = new double[(faces + CLUSTER_SIZE - 1) / CLUSTER_SIZE * 9];
+    for (int c = 0; c < cluster.length / 9; c++) cluster(c * CLUSTER_SIZE, Math.min(faces, (c + 1) * CLUSTER_SIZE));
+  }
+
+  /**
+   * Frozen copy of the obj with its tangents for the bump mapping.
+   */
+  public static Mesh of(Obj obj) {
+    return new Mesh(obj.clone(), Shader.computeTangentBitangent(obj));
+  }
+
+  public int faces() {
+    return obj.face.length / 9;
+  }
+
+  public int vertices() {
+    return obj.vertex.length / 3;
+  }
+
+  /**
+   * Bounding sphere and normal cone of the faces, the cone is disabled (cos 0, sin 2) if it is as wide as a hemisphere.
+   */
+  private void cluster(int from, int to) {
+    int[] face = obj.face;
+    double[] v = obj.vertex;
+    double cx = 0, cy = 0, cz = 0, ax = 0, ay = 0, az = 0;
+    for (int f = from; f < to; f++) {
+      for (int i = f * 9; i < f * 9 + 9; i += 3) {
+        cx += v[face[i] * 3];
+        cy += v[face[i] * 3 + 1];
+        cz += v[face[i] * 3 + 2];
+      }
+      double length = Math.sqrt(plane[f * 4] * plane[f * 4] + plane[f * 4 + 1] * plane[f * 4 + 1]
+          + plane[f * 4 + 2] * plane[f * 4 + 2]);
+      if (length == 0) continue;
+      ax += plane[f * 4] / length;
+      ay += plane[f * 4 + 1] / length;
+      az += plane[f * 4 + 2] / length;
+    }
+    int n = (to - from) * 3;
+    cx /= n;
+    cy /= n;
+    cz /= n;
+    double r = 0;
+    for (int f = from; f < to; f++) {
+      for (int i = f * 9; i < f * 9 + 9; i += 3) {
+        double dx = v[face[i] * 3] - cx, dy = v[face[i] * 3 + 1] - cy, dz = v[face[i] * 3 + 2] - cz;
+        r = Math.max(r, Math.sqrt(dx * dx + dy * dy + dz * dz));
+      }
+    }
+    double length = Math.sqrt(ax * ax + ay * ay + az * az);
+    double cos = length == 0 ? 0 : 1;
+    for (int f = from; f < to && cos > 0; f++) {
+      double l = Math.sqrt(plane[f * 4] * plane[f * 4] + plane[f * 4 + 1] * plane[f * 4 + 1]
+          + plane[f * 4 + 2] * plane[f * 4 + 2]);
+      cos = l == 0 ? 0 : Math.min(cos, (plane[f * 4] * ax + plane[f * 4 + 1] * ay + plane[f * 4 + 2] * az) / (l * length));
+    }
+    int c = from / CLUSTER_SIZE * 9;
+    cluster[c] = cx;
+    cluster[c + 1] = cy;
+    cluster[c + 2] = cz;
+    cluster[c + 3] = r * (1 + 1e-9);
+    cluster[c + 4] = length == 0 ? 0 : ax / length;
+    cluster[c + 5] = length == 0 ? 0 : ay / length;
+    cluster[c + 6] = length == 0 ? 0 : az / length;
+    cluster[c + 7] = Math.max(0, cos);
+    cluster[c + 8] = cos > 0 ? Math.sqrt(1 - cos * cos) : 2;
+  }
+
+}
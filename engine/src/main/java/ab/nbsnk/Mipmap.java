@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk;
+
+/**
+ * Texture pyramid, each level is the previous one halved with a box filter, down to 1x1.
+ * Rows go from the top of the image as in BufferedImage.getRGB.
+ */
+public class Mipmap {
+  public final int[][] raster;
+  public final int[] width;
+  public final int[] height;
+
+  public Mipmap(int[] raster, int width, int height) {
+    int levels = 1;
+    while (width >> levels > 0 || height >> levels > 0) levels++;
+    this.raster = new int[levels][];
+    this.width = new int[levels];
+    this.height = new int[levels];
+    this.raster[0] = raster;
+    this.width[0] = width;
+    this.height[0] = height;
+    for (int level = 1; level < levels; level++) {
+      int w = this.width[level - 1];
+      int h = this.height[level - 1];
+      int[] r = this.raster[level - 1];
+      int w2 = Math.max(1, w / 2);
+      int h2 = Math.max(1, h / 2);
+      int[] r2 = new int[w2 * h2];
+      for (int y = 0; y < h2; y++) {
+        int y0 = Math.min(2 * y, h - 1) * w;
+        int y1 = Math.min(2 * y + 1, h - 1) * w;
+        for (int x = 0; x < w2; x++) {
+          int x0 = Math.min(2 * x, w - 1);
+          int x1 = Math.min(2 * x + 1, w - 1);
+          r2[y * w2 + x] = average(r[y0 + x0], r[y0 + x1], r[y1 + x0], r[y1 + x1]);
+        }
+      }
+      this.raster[level] = r2;
+      this.width[level] = w2;
+      this.height[level] = h2;
+    }
+  }
+
+  private static int average(int c0, int c1, int c2, int c3) {
+    int color = 0;
+    for (int shift = 0; shift < 32; shift += 8) {
+      int sum = (c0 >>> shift & 0xFF) + (c1 >>> shift & 0xFF) + (c2 >>> shift & 0xFF) + (c3 >>> shift & 0xFF);
+      color |= (sum + 2) / 4 << shift;
+    }
+    return color;
+  }
+
+  public int levels() {
+    return raster.length;
+  }
+
+  /**
+   * @param uvArea twice the area of the face in the texture coordinates, 0 to 1
+   * @param screenArea twice the area of the face in pixels
+   * @return level where a pixel covers about a texel, log4 of the texels per pixel
+   */
+  public int level(double uvArea, double screenArea) {
+    double texelsPerPixel = uvArea * width[0] * height[0] / screenArea;
+    if (!(texelsPerPixel >= 4)) return 0; // NaN too
+    return Math.min(Math.getExponent(texelsPerPixel) / 2, raster.length - 1);
+  }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk;
+
+/**
+ * Equirectangular environment resampled once into an octahedral square,
+ * a direction finds its texel with a few additions and one division.
+ */
+public class ReflectionMap {
+  public final int[] raster;
+  public final int size;
+
+  /**
+   * @param equirectangular rows from the top, y up at the top row, -z in the middle column
+   */
+  public ReflectionMap(int[] equirectangular, int width, int height) {
+    size = Math.max(width, height);
+    raster = new int[size * size];
+    for (int j = 0; j < size; j++) {
+      for (int i = 0; i < size; i++) {
+        double u = (i + 0.5) / size * 2 - 1;
+        double v = (j + 0.5) / size * 2 - 1;
+        double y = 1 - Math.abs(u) - Math.abs(v);
+        if (y < 0) { // lower hemisphere folded into the corners
+          double fu = (1 - Math.abs(v)) * (u < 0 ? -1 : 1);
+          v = (1 - Math.abs(u)) * (v < 0 ? -1 : 1);
+          u = fu;
+        }
+        double length = Math.sqrt(u * u + y * y + v * v);
+        raster[j * size + i] = equirectangular[texel(u / length, y / length, v / length, width, height)];
+      }
+    }
+  }
+
+  /**
+   * Index of the direction in the equirectangular raster.
+   */
+  public static int texel(double x, double y, double z, int width, int height) {
+    int ty = Math.min(Math.max(0, (int) Math.round((0.5 - Math.asin(y) / Math.PI) * height)), height - 1);
+    int tx = (int) Math.round((1 - Math.atan2(x, z) / Math.PI) / 2 * width);
+    tx = (tx % width + width) % width;
+    return ty * width + tx;
+  }
+
+  /**
+   * @return color in the direction xyz, any length but zero
+   */
+  public int get(double x, double y, double z) {
+    double l = Math.abs(x) + Math.abs(y) + Math.abs(z);
+    double u = x / l;
+    double v = z / l;
+    if (y < 0) {
+      double fu = (1 - Math.abs(v)) * (u < 0 ? -1 : 1);
+      v = (1 - Math.abs(u)) * (v < 0 ? -1 : 1);
+      u = fu;
+    }
+    int i = Math.min((int) ((u + 1) * 0.5 * size), size - 1);
+    int j = Math.min((int) ((v + 1) * 0.5 * size), size - 1);
+    return raster[j * size + i];
+  }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk;
+
+import java.util.Arrays;
+
+/**
+ * Draw order of a frame. The sort key and the index of the item are packed into a long,
+ * so sorting does not allocate and equal keys keep the submission order.
+ */
+public class RenderQueue<T> {
+  public static final int INDEX_BITS = 20;
+  public static final int DEPTH_BITS = 10; // opaque depth layers, coarse to batch the materials inside a layer
+  public static final int MATERIAL_BITS = 22;
+  public static final long TRANSPARENT = 1L << (DEPTH_BITS + MATERIAL_BITS);
+
+  private Object[] items = new Object[64];
+  private long[] keys = new long[64];
+  private int size;
+
+  /**
+   * Front to back by layers, then by material.
+   * @param depth from 0 at the camera to 1 at the far clip
+   */
+  public static long opaqueKey(double depth, int material) {
+    long layer = (long) (Math.min(Math.max(depth, 0), 1) * ((1 << DEPTH_BITS) - 1));
+    return layer << MATERIAL_BITS | material & (1 << MATERIAL_BITS) - 1;
+  }
+
+  /**
+   * Back to front, after all the opaque keys.
+   */
+  public static long transparentKey(double depth) {
+    return TRANSPARENT | (long) ((1 - Math.min(Math.max(depth, 0), 1)) * (TRANSPARENT - 1));
+  }
+
+  public void clear() {
+    Arrays.fill(items, 0, size, null);
+    size = 0;
+  }
+
+  public void add(T item, long key) {
+    if (size == 1 << INDEX_BITS) throw new IllegalStateException("too many items");
+    if (size == items.length) {
+      items = Arrays.copyOf(items, size * 2);
+      keys = Arrays.copyOf(keys, size * 2);
+    }
+    items[size] = item;
+    keys[size] = key << INDEX_BITS | size;
+    size++;
+  }
+
+  public void sort() {
+    Arrays.sort(keys, 0, size);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  @SuppressWarnings("unchecked")
+  public T get(int i) {
+    return (T) items[(int) (keys[i] & (1 << INDEX_BITS) - 1)];
+  }
+
+  public long key(int i) {
+    return keys[i] >>> INDEX_BITS;
+  }
+
+}
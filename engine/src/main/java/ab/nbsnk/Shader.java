@@ -17,7 +17,7 @@
 
 package ab.nbsnk;
 
-import Jama.Matrix;
+import ab.nbsnk.math.Mat;
 import ab.nbsnk.nodes.Col;
 import ab.nbsnk.nodes.Pnt;
 
@@ -25,42 +25,70 @@ import java.awt.Point;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.function.Supplier;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class Shader {
+public class Shader implements Cloneable {
 
   public static final double FOCAL_LENGTH = 50;
   public static final double FILM_HEIGHT = 24;
+  public static final int TILE_SIZE = 64;
+  public static final int BLOCK_SIZE = 8; // rasterization block, a power of two
+  public static final int SUBPIXEL = 16; // fixed-point vertex precision
+  public static final double GUARD_BAND = 1 << 26; // fixed-point range in pixels
+  public static final int ILLUMINATION_SIZE = 7;
 
   public boolean enableZbuffer = true;
   public boolean enableTexture = true;
   public enum Illumination { NONE, LAMBERT, GOURAUD, PHONG, BLINNPHONG }
   public Illumination enableIllumination = Illumination.PHONG; // 0 None, 1 Lambert, 2 Gouraud, 3 Phong
   public int enableDimension = 2; // 0 point cloud, 1 wire-frame, 2 polygon mesh
+  public boolean enableDeferred; // opaque phong objs shaded once per pixel by shadeDeferred()
+  // FLOAT reverse-z, 1 near 0 far with the float precision growing to the far plane, INT24 fixed point
+  public enum DepthFormat { DOUBLE, FLOAT, INT24 }
+  public DepthFormat depthFormat = DepthFormat.DOUBLE; // set before cls()
+  public static final int INT24_MAX = (1 << 24) - 1;
+  public boolean enableOcclusion = true; // hierarchical z, hidden blocks and objs are skipped
+  public static final double OCCLUSION_EPSILON = 1.0 / (1 << 22); // above the float and int24 depth steps
   public double nearClip = 0.1;
   public double farClip = 100.0; // javaFx camera defaults
 
-  public static class Light { Col color; Pnt xyz; }
+  public static class Light { Col color; Pnt xyz; double range; }
   public List<Light> lights;
   public Col[] lightColor;
   public Pnt[] lightPoint;
+  public double[] lightRange; // infinite if the light reaches everything
+  public int[] lightList; // indexes of the lights evaluated by illuminationRgb
+  public int lightListSize;
+  public int[][] tileLights; // per screen tile, null if no light has a range
+  private int[] allLights;
 
   public int[] imageRaster;
+  public int clearColor; // of the cleared tiles
+  public int[] background; // copied into the cleared tiles instead of the clear color if set
   public int imageWidth;
   public int imageHeight;
   public double focalLength; // in pixels
-  public double[] zbuffer;
+  public double[] zbuffer; // of the depth format, the others are null
+  public float[] zbufferFloat;
+  public int[] zbufferInt;
+  public int[] gbufferMaterial; // deferred pixels, index of the material or -1
+  public float[] gbufferNormal; // xyz per pixel, camera space, the position is rebuilt from the depth
+  public float[] gbufferTexture; // uv per pixel
+  public byte[] gbufferLevel; // mipmap level of the texture
   public int[] textureRaster;
   public int textureWidth;
   public int textureHeight;
+  public Mipmap textureMipmap; // levels of the textureRaster, picked per face
+  public int textureLevel;
   public int[] bumpRaster;
+  public Mipmap bumpMipmap;
   public int bumpWidth;
   public int bumpHeight;
-  public int[] reflectionRaster;
-  public int reflectionWidth;
-  public int reflectionHeight;
+  public ReflectionMap reflectionMap;
   public double reflectionAlpha;
-  public Matrix reflectionMatrix;
+  public Mat reflectionMatrix = new Mat();
   public Point reflectionTest;
 
   public Col ambientColor = new Col();
@@ -69,13 +97,15 @@ public class Shader {
   public double specularPower = 32; // shininess
 
   public int[] face; // current obj
-  public Pnt[] vertex;
-  public Pnt[] vertexTrue; // because vertex is a projection
-  public Pnt[] normal;
-  public Pnt[] tangentBitangent;
+  public double[] vertex; // flat xyz, as in VertexStage
+  public double[] vertexTrue; // because vertex is a projection
+  public double[] normal;
+  public double[] tangentBitangent;
   public double[] texture;
+  public VertexStage vertexStage = new VertexStage();
+  public VertexStage currentStage; // of the current obj
   public int iface;
-  public int fv0;
+  public int fv0; // offsets in the flat arrays
   public int fn0;
   public int ft0;
   public int fv1;
@@ -84,19 +114,64 @@ public class Shader {
   public int fv2;
   public int fn2;
   public int ft2;
-  public Pnt v0;
-  public Pnt v1;
-  public Pnt v2;
+  public Pnt v0 = new Pnt();
+  public Pnt v1 = new Pnt();
+  public Pnt v2 = new Pnt();
   public double ttx;
   public double tty;
-  public Col[] gouraudIllumination = new Col[6];
+  public double pixelNormalX; // phong, normalized and bumped
+  public double pixelNormalY;
+  public double pixelNormalZ;
+  public int materialId = -1; // of the current obj in the deferred mode
+  public double[] gouraudIllumination = new double[3 * ILLUMINATION_SIZE]; // per vertex diffuse rgba, specular rgb
+  public double diffuseR; // the shaded pixel, diffuse with alpha and specular
+  public double diffuseG;
+  public double diffuseB;
+  public double diffuseA;
+  public double specularR;
+  public double specularG;
+  public double specularB;
   public double[] barycentricCoordinates = new double[4];
   public int imageRasterX;
   public int imageRasterY;
   public int imageRasterXY;
+  public boolean createIllumination;
+  public int clipMinX; // drawFace bounds, a tile or the whole image
+  public int clipMinY;
+  public int clipMaxX;
+  public int clipMaxY;
+  public int faceMinX;
+  public int faceMinY;
+  public int faceMaxX;
+  public int faceMaxY;
+  public long pixelTests; // depth tests since cls()
+  public long pixelRejects;
+  public long pixelsShaded;
+  public long faces; // of the added objs since cls()
+  public long backFaces;
+  public long clippedFaces;
+  public long vertexNanos; // since cls()
+  public long rasterNanos; // drawing in add() or binning and flush()
+  public long shadeNanos;
+
+  public ForkJoinPool pool; // tile-parallel rasterization if set
+  private List<Shader> draws = new ArrayList<>(); // shapes binned in the current frame
+  private int tilesX;
+  private int tilesY;
+  private double[] hiz = new double[0]; // per block, below the farthest depth of its pixels
+  private boolean[] hizDirty = new boolean[0]; // drawn into since the block depth was read
+  private int blocksX;
+  private int[] occlusionRect = new int[4];
+  private boolean[] tileCleared = new boolean[0]; // the rasters are cleared by the first write into the tile
+  private int[][] bins = new int[0][]; // per tile pairs of draw index and face index
+  private int[] binSize = new int[0];
+  private List<Shader> materials = new ArrayList<>(); // deferred objs of the current frame
+  private AtomicLong tilePixelTests = new AtomicLong(); // counted by the tile forks until flush()
+  private AtomicLong tilePixelRejects = new AtomicLong();
+  private AtomicLong tilePixelsShaded = new AtomicLong();
 
   Runnable visibleFaceMethod;
-  Supplier<Col[]> visiblePixelMethod;
+  Runnable visiblePixelMethod;
 
   public static Pnt viewerVector(double x, double y, int imageWidth, int imageHeight, double focalLength) {
     return new Pnt(
@@ -111,6 +186,17 @@ public class Shader {
    * Z from 0 (very) far to 1 near.
    */
   public void rasterization() {
+    materialId = -1;
+    if (enableDeferred && enableDimension == 2 && enableIllumination == Illumination.PHONG && diffuseColor.a == 1) {
+      materialId = materials.size();
+      materials.add(fork());
+    }
+    pipeline();
+    if (enableDimension != 2) clearTiles(0, 0, imageWidth - 1, imageHeight - 1);
+    if (pool != null && enableDimension == 2) bin(); else iterateVisibleFace();
+  }
+
+  private void pipeline() {
     switch (enableDimension) {
       case 1: visibleFaceMethod = this::drawEdge; break;
       case 2: visibleFaceMethod = this::drawFace; break;
@@ -124,102 +210,188 @@ public class Shader {
     }
     if (!enableTexture) textureHeight = 0;
     //visiblePixelMethod = this::getTextureColor;
-    iterateVisibleFace();
   }
 
-  public Col[] phongShading() {
-    Pnt barycentricNormal = Pnt.barycentric(
-        normal[fn0],
-        normal[fn1],
-        normal[fn2],
-        barycentricCoordinates
-    ).normalize(); // yes, it must be normalized
+  public void phongShading() {
+    phongNormal();
+    double[] r = barycentricCoordinates;
+    double[] p = vertexTrue;
+    phongLighting(
+        p[fv0] * r[0] + p[fv1] * r[1] + p[fv2] * r[2],
+        p[fv0 + 1] * r[0] + p[fv1 + 1] * r[1] + p[fv2 + 1] * r[2],
+        p[fv0 + 2] * r[0] + p[fv1 + 2] * r[1] + p[fv2 + 2] * r[2]);
+  }
+
+  /**
+   * Interpolated normal of the pixel with the bump map applied.
+   */
+  public void phongNormal() {
+    double[] r = barycentricCoordinates;
+    double[] n = normal;
+    double nx = n[fn0] * r[0] + n[fn1] * r[1] + n[fn2] * r[2];
+    double ny = n[fn0 + 1] * r[0] + n[fn1 + 1] * r[1] + n[fn2 + 1] * r[2];
+    double nz = n[fn0 + 2] * r[0] + n[fn1 + 2] * r[1] + n[fn2 + 2] * r[2];
+    double length = Math.sqrt(nx * nx + ny * ny + nz * nz); // yes, it must be normalized
+    nx /= length;
+    ny /= length;
+    nz /= length;
     if (bumpHeight > 0) {
       int btx = Math.min(Math.max(0, (int) (ttx * bumpWidth)), bumpWidth - 1); // bump texture x
       int bty = Math.min(Math.max(0, (int) (tty * bumpHeight)), bumpHeight - 1);
-      Col bumpCol = new Col(bumpRaster[(bumpHeight - 1 - bty) * bumpWidth + btx]);
-      double vt = bumpCol.r - 0.5;
-      double vb = bumpCol.g - 0.5;
-      double vn = 2 * (bumpCol.b - 0.5); // TODO: 2025-10-25 confirm that 2* is not a bug of javafx
-      int i = iface * 2;
-      Pnt t = tangentBitangent[i++];
-      Pnt b = tangentBitangent[i++];
-      barycentricNormal = new Pnt().add(t, vt).add(b, vb).add(barycentricNormal, vn).normalize();
-    }
-    Pnt barycentricPosition = Pnt.barycentric(
-        vertexTrue[fv0],
-        vertexTrue[fv1],
-        vertexTrue[fv2],
-        barycentricCoordinates);
-    Pnt viewer = viewerVector(imageRasterX, imageRasterY, imageWidth, imageHeight, focalLength);
-    Col[] diffuseSpecular = illuminationRgb(barycentricPosition, barycentricNormal, viewer);
-    diffuseSpecular[0].mul(getTextureColor());
+      int bump = bumpRaster[(bumpHeight - 1 - bty) * bumpWidth + btx];
+      double vt = (bump >> 16 & 0xFF) / 255.0 - 0.5;
+      double vb = (bump >> 8 & 0xFF) / 255.0 - 0.5;
+      double vn = 2 * ((bump & 0xFF) / 255.0 - 0.5); // TODO: 2025-10-25 confirm that 2* is not a bug of javafx
+      double[] tb = tangentBitangent;
+      int i = iface * 6;
+      nx = tb[i] * vt + tb[i + 3] * vb + nx * vn;
+      ny = tb[i + 1] * vt + tb[i + 4] * vb + ny * vn;
+      nz = tb[i + 2] * vt + tb[i + 5] * vb + nz * vn;
+      length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+      nx /= length;
+      ny /= length;
+      nz /= length;
+    }
+    pixelNormalX = nx;
+    pixelNormalY = ny;
+    pixelNormalZ = nz;
+  }
+
+  /**
+   * Phong illumination, texture and reflection of the pixel at xyz with the pixel normal.
+   */
+  public void phongLighting(double x, double y, double z) {
+    double nx = pixelNormalX;
+    double ny = pixelNormalY;
+    double nz = pixelNormalZ;
+    double vx = imageWidth / 2.0 - 0.5 - imageRasterX; // viewer vector
+    double vy = imageHeight / 2.0 - 0.5 - imageRasterY;
+    double vz = focalLength;
+    double length = Math.sqrt(vx * vx + vy * vy + vz * vz);
+    vx /= length;
+    vy /= length;
+    vz /= length;
+    if (tileLights != null) {
+      lightList = tileLights[imageRasterY / TILE_SIZE * tilesX + imageRasterX / TILE_SIZE];
+      lightListSize = lightList.length;
+    }
+    illuminationRgb(x, y, z, nx, ny, nz, vx, vy, vz);
+    int texture = getTextureColor();
+    diffuseR *= (texture >> 16 & 0xFF) / 255.0;
+    diffuseG *= (texture >> 8 & 0xFF) / 255.0;
+    diffuseB *= (texture & 0xFF) / 255.0;
+    diffuseA *= (texture >> 24 & 0xFF) / 255.0;
     if (reflectionAlpha > 0) {
-      double dotVN = viewer.dot(barycentricNormal);
-      Pnt R = new Pnt(
-          2 * dotVN * barycentricNormal.x - viewer.x,
-          2 * dotVN * barycentricNormal.y - viewer.y,
-          2 * dotVN * barycentricNormal.z - viewer.z
-      ).normalize();
-      Matrix r1 = reflectionMatrix.times(R.toMatrix(0));
-      double rx = r1.get(0, 0);
-      double ry = r1.get(1, 0);
-      double rz = r1.get(2, 0);
-      double length = Math.sqrt(rx * rx + ry * ry + rz * rz);
-      if (length < 0.999 || length > 1.001) throw new IllegalStateException();
+      double dotVN = vx * nx + vy * ny + vz * nz;
+      x = 2 * dotVN * nx - vx; // unit length, the normal and the viewer vector are
+      y = 2 * dotVN * ny - vy;
+      z = 2 * dotVN * nz - vz;
+      Mat m = reflectionMatrix;
+      double rx = m.m00 * x + m.m01 * y + m.m02 * z;
+      double ry = m.m10 * x + m.m11 * y + m.m12 * z;
+      double rz = m.m20 * x + m.m21 * y + m.m22 * z;
       if (reflectionTest != null && reflectionTest.x == imageRasterX && imageHeight - 1 - reflectionTest.y == imageRasterY) {
         System.out.println(rx + ", " + ry + ", " + rz + ", ");
         reflectionTest = null;
       }
-      int reflectionY = Math.min(Math.max(0, (int) Math.round((0.5 - Math.asin(ry) / Math.PI) * reflectionHeight)), reflectionHeight - 1);
-      int reflectionX = (int) Math.round((1 - Math.atan2(rx, rz) / Math.PI) / 2 * reflectionWidth);
-      reflectionX = (reflectionX % reflectionWidth + reflectionWidth) % reflectionWidth;
+      int reflection = reflectionMap.get(rx, ry, rz);
       // retain diffuse alpha
-      diffuseSpecular[0] = diffuseSpecular[0].clone().add(diffuseSpecular[0], -reflectionAlpha)
-          .add(new Col(reflectionRaster[reflectionY * reflectionWidth + reflectionX]), reflectionAlpha);
+      diffuseR = diffuseR + diffuseR * -reflectionAlpha + (reflection >> 16 & 0xFF) / 255.0 * reflectionAlpha;
+      diffuseG = diffuseG + diffuseG * -reflectionAlpha + (reflection >> 8 & 0xFF) / 255.0 * reflectionAlpha;
+      diffuseB = diffuseB + diffuseB * -reflectionAlpha + (reflection & 0xFF) / 255.0 * reflectionAlpha;
     }
-    return diffuseSpecular;
   }
 
-  public Col[] illuminationRgb(Pnt xyz, Pnt normal, Pnt viewer) {
-    Col diffuseRgb = new Col().opaque();
-    Col specularRgb = new Col().opaque();
-    for (int i = 0; i < lightPoint.length; i++) {
-      Pnt light = lightPoint[i].clone().add(xyz, -1).normalize();
-      double dotLN = light.dot(normal);
-      Pnt R = new Pnt(
-          2 * dotLN * normal.x - light.x,
-          2 * dotLN * normal.y - light.y,
-          2 * dotLN * normal.z - light.z
-      ).normalize();
-      double dotRV = R.dot(viewer);
+  /**
+   * Sets diffuse and specular of the point xyz with the normal n, vectors are normalized.
+   */
+  public void illuminationRgb(double x, double y, double z, double nx, double ny, double nz,
+      double vx, double vy, double vz) {
+    double dr = 0;
+    double dg = 0;
+    double db = 0;
+    double sr = 0;
+    double sg = 0;
+    double sb = 0;
+    int[] lightList = this.lightList;
+    for (int k = 0; k < lightListSize; k++) {
+      int i = lightList[k];
+      Pnt lightPoint = this.lightPoint[i];
+      double lx = lightPoint.x - x;
+      double ly = lightPoint.y - y;
+      double lz = lightPoint.z - z;
+      double length = Math.sqrt(lx * lx + ly * ly + lz * lz);
+      double range = lightRange[i];
+      if (length >= range) continue;
+      double attenuation = 1;
+      if (range != Double.POSITIVE_INFINITY) {
+        double q = length / range;
+        attenuation = (1 - q * q) * (1 - q * q); // smooth, zero at the range
+      }
+      lx /= length;
+      ly /= length;
+      lz /= length;
+      double dotLN = lx * nx + ly * ny + lz * nz;
+      double rx = 2 * dotLN * nx - lx;
+      double ry = 2 * dotLN * ny - ly;
+      double rz = 2 * dotLN * nz - lz;
+      length = Math.sqrt(rx * rx + ry * ry + rz * rz);
+      double dotRV = rx / length * vx + ry / length * vy + rz / length * vz;
       //double illumination = ambient + diffuse * dotLN + specular * Math.pow(dotRV, specularPower);
-      diffuseRgb.add(lightColor[i], Math.max(0, dotLN)); // diffuse
-      specularRgb.add(lightColor[i], Math.pow(Math.max(0, dotRV), specularPower)); // specular
+      Col lightColor = this.lightColor[i];
+      double diffuse = Math.max(0, dotLN) * attenuation;
+      dr += lightColor.r * diffuse;
+      dg += lightColor.g * diffuse;
+      db += lightColor.b * diffuse;
+      double specular = Math.pow(Math.max(0, dotRV), specularPower) * attenuation;
+      sr += lightColor.r * specular;
+      sg += lightColor.g * specular;
+      sb += lightColor.b * specular;
     }
-    // full opaque Col.add() in this method
-    return new Col[]{diffuseRgb.add(ambientColor, 1).mul(diffuseColor), specularRgb.mul(specularColor)};
+    diffuseR = (dr + ambientColor.r) * diffuseColor.r;
+    diffuseG = (dg + ambientColor.g) * diffuseColor.g;
+    diffuseB = (db + ambientColor.b) * diffuseColor.b;
+    diffuseA = diffuseColor.a;
+    specularR = sr * specularColor.r;
+    specularG = sg * specularColor.g;
+    specularB = sb * specularColor.b;
   }
 
-  public Col[] gouraudShading() {
-//    double illumination = barycentricValue(
-//        gouraudIllumination[0], gouraudIllumination[1], gouraudIllumination[2], barycentricCoordinates);
-//    Col col = new Col(illumination, illumination, illumination, 1);
-    Col diffuse = Col.barycentric(gouraudIllumination[0], gouraudIllumination[2], gouraudIllumination[4], barycentricCoordinates);
-    Col specular = Col.barycentric(gouraudIllumination[1], gouraudIllumination[3], gouraudIllumination[5], barycentricCoordinates);
-    return new Col[]{getTextureColor().mul(diffuse), specular};
+  public void gouraudShading() {
+    double[] r = barycentricCoordinates;
+    double[] g = gouraudIllumination;
+    int texture = getTextureColor();
+    diffuseR = (texture >> 16 & 0xFF) / 255.0 * (g[0] * r[0] + g[7] * r[1] + g[14] * r[2]);
+    diffuseG = (texture >> 8 & 0xFF) / 255.0 * (g[1] * r[0] + g[8] * r[1] + g[15] * r[2]);
+    diffuseB = (texture & 0xFF) / 255.0 * (g[2] * r[0] + g[9] * r[1] + g[16] * r[2]);
+    diffuseA = (texture >> 24 & 0xFF) / 255.0 * (g[3] * r[0] + g[10] * r[1] + g[17] * r[2]);
+    specularR = g[4] * r[0] + g[11] * r[1] + g[18] * r[2];
+    specularG = g[5] * r[0] + g[12] * r[1] + g[19] * r[2];
+    specularB = g[6] * r[0] + g[13] * r[1] + g[20] * r[2];
   }
 
-  public Col[] lambertTexture() {
-//    double illumination = gouraudIllumination[0];
-//    Col col = new Col(illumination, illumination, illumination, 1);
-    return new Col[]{getTextureColor().mul(gouraudIllumination[0]), gouraudIllumination[1]};
+  public void lambertTexture() {
+    double[] g = gouraudIllumination;
+    int texture = getTextureColor();
+    diffuseR = (texture >> 16 & 0xFF) / 255.0 * g[0];
+    diffuseG = (texture >> 8 & 0xFF) / 255.0 * g[1];
+    diffuseB = (texture & 0xFF) / 255.0 * g[2];
+    diffuseA = (texture >> 24 & 0xFF) / 255.0 * g[3];
+    specularR = g[4];
+    specularG = g[5];
+    specularB = g[6];
   }
 
-  public Col[] pixelZbuffer() {
-    if (textureHeight > 0) return new Col[]{getTextureColor(), new Col()};
-    double z = barycentricValue(v0.z, v1.z, v2.z, barycentricCoordinates);
-    return new Col[]{new Col((int) (z * 0xFF) * 0x010101 + 0xFF000000), new Col()};
+  public void pixelZbuffer() {
+    int color = textureHeight > 0 ? getTextureColor()
+        : (int) (barycentricValue(v0.z, v1.z, v2.z, barycentricCoordinates) * 0xFF) * 0x010101 + 0xFF000000;
+    diffuseR = (color >> 16 & 0xFF) / 255.0;
+    diffuseG = (color >> 8 & 0xFF) / 255.0;
+    diffuseB = (color & 0xFF) / 255.0;
+    diffuseA = (color >> 24 & 0xFF) / 255.0;
+    specularR = 0;
+    specularG = 0;
+    specularB = 0;
   }
 
   public void drawVertex() {
@@ -262,27 +434,226 @@ public class Shader {
 
   // Nbsnk. made in NZ
 
+  /**
+   * @return true if the face is facing the viewer
+   */
+  public boolean face(int iface) {
+    this.iface = iface;
+    int i = iface * 9;
+    fv0 = face[i++] * 3;
+    fn0 = face[i++] * 3;
+    ft0 = face[i++] * 2;
+    fv1 = face[i++] * 3;
+    fn1 = face[i++] * 3;
+    ft1 = face[i++] * 2;
+    fv2 = face[i++] * 3;
+    fn2 = face[i++] * 3;
+    ft2 = face[i] * 2;
+    double[] v = vertex;
+    v0.x = v[fv0]; v0.y = v[fv0 + 1]; v0.z = v[fv0 + 2];
+    v1.x = v[fv1]; v1.y = v[fv1 + 1]; v1.z = v[fv1 + 2];
+    v2.x = v[fv2]; v2.y = v[fv2 + 1]; v2.z = v[fv2 + 2];
+    double n = (v1.x - v0.x) * (v2.y - v0.y) - (v1.y - v0.y) * (v2.x - v0.x); // normal of the triangle
+    return n >= 0;
+  }
+
   public void iterateVisibleFace() {
-    for (int i = 0; i < face.length;) {
-      iface = i / 9;
-      fv0 = face[i++];
-      fn0 = face[i++];
-      ft0 = face[i++] * 2;
-      fv1 = face[i++];
-      fn1 = face[i++];
-      ft1 = face[i++] * 2;
-      fv2 = face[i++];
-      fn2 = face[i++];
-      ft2 = face[i++] * 2;
-      v0 = vertex[fv0];
-      v1 = vertex[fv1];
-      v2 = vertex[fv2];
-      Pnt va = v1.clone().add(v0, -1);
-      Pnt vb = v2.clone().add(v0, -1);
-      double n = va.x * vb.y - va.y * vb.x; // normal of the triangle
-      if (n < 0) continue;
-      visibleFaceMethod.run();
+    boolean[] front = currentStage.front;
+    for (int i = 0; i < face.length / 9; i++) {
+      if (!front[i]) continue;
+      if (face(i)) visibleFaceMethod.run();
+      else if (nearPlane()) clippedFaces++;
+      else backFaces++;
+    }
+  }
+
+  /**
+   * Sorts the visible faces of the current obj into screen tiles, they are drawn later by flush().
+   * Each tile keeps the submission order, so the output is identical to the single-threaded one.
+   */
+  private void bin() {
+    int d = draws.size();
+    draws.add(fork());
+    boolean[] front = currentStage.front;
+    for (int i = 0; i < face.length / 9; i++) {
+      if (!front[i]) continue;
+      if (!face(i)) {
+        if (nearPlane()) clippedFaces++; else backFaces++;
+        continue;
+      }
+      if (!clipFace()) {
+        clippedFaces++;
+        continue;
+      }
+      // the tiles only read the shared vertex illumination
+      if (enableIllumination == Illumination.GOURAUD) createGouraudIllumination();
+      for (int ty = faceMinY / TILE_SIZE; ty <= faceMaxY / TILE_SIZE; ty++) {
+        for (int tx = faceMinX / TILE_SIZE; tx <= faceMaxX / TILE_SIZE; tx++) {
+          int tile = ty * tilesX + tx;
+          int size = binSize[tile];
+          if (size == bins[tile].length) bins[tile] = Arrays.copyOf(bins[tile], Math.max(size * 2, 64));
+          bins[tile][size++] = d;
+          bins[tile][size++] = i;
+          binSize[tile] = size;
+        }
+      }
+    }
+  }
+
+  /**
+   * Draws the binned faces, tiles in parallel. Each tile owns its part of imageRaster and zbuffer.
+   */
+  public void flush() {
+    if (draws.isEmpty()) return;
+    long start = System.nanoTime();
+    List<ForkJoinTask<?>> tasks = new ArrayList<>();
+    for (int tile = 0; tile < binSize.length; tile++) {
+      if (binSize[tile] == 0) continue;
+      int t = tile;
+      tasks.add(pool.submit(() -> drawTile(t)));
+    }
+    for (ForkJoinTask<?> task : tasks) task.join();
+    draws.clear();
+    Arrays.fill(binSize, 0);
+    pixelTests += tilePixelTests.getAndSet(0);
+    pixelRejects += tilePixelRejects.getAndSet(0);
+    pixelsShaded += tilePixelsShaded.getAndSet(0);
+    rasterNanos += System.nanoTime() - start;
+  }
+
+  /**
+   * Lighting pass of the deferred pixels, each of them is shaded once.
+   * Called after the opaque objs are flushed and before the transparent ones.
+   */
+  public void shadeDeferred() {
+    if (materials.isEmpty()) return;
+    long start = System.nanoTime();
+    if (pool == null) {
+      Shader shader = fork();
+      for (int tile = 0; tile < tileCleared.length; tile++) if (tileCleared[tile]) shader.shadeDeferred(tile);
+      pixelsShaded += shader.pixelsShaded;
+    } else {
+      List<ForkJoinTask<?>> tasks = new ArrayList<>();
+      for (int tile = 0; tile < tileCleared.length; tile++) {
+        if (!tileCleared[tile]) continue; // nothing was drawn there
+        int t = tile;
+        tasks.add(pool.submit(() -> {
+          Shader shader = fork();
+          shader.shadeDeferred(t);
+          tilePixelsShaded.addAndGet(shader.pixelsShaded);
+        }));
+      }
+      for (ForkJoinTask<?> task : tasks) task.join();
+      pixelsShaded += tilePixelsShaded.getAndSet(0);
+    }
+    materials.clear();
+    shadeNanos += System.nanoTime() - start;
+  }
+
+  private void shadeDeferred(int tile) {
+    int minX = tile % tilesX * TILE_SIZE;
+    int minY = tile / tilesX * TILE_SIZE;
+    int maxX = Math.min(minX + TILE_SIZE, imageWidth) - 1;
+    int maxY = Math.min(minY + TILE_SIZE, imageHeight) - 1;
+    int current = -1;
+    double w2 = imageWidth / 2.0 - 0.5;
+    double h2 = imageHeight / 2.0 - 0.5;
+    for (imageRasterY = minY; imageRasterY <= maxY; imageRasterY++) {
+      for (imageRasterX = minX; imageRasterX <= maxX; imageRasterX++) {
+        imageRasterXY = (imageHeight - 1 - imageRasterY) * imageWidth + imageRasterX;
+        int id = gbufferMaterial[imageRasterXY];
+        if (id < 0) continue;
+        if (id != current) {
+          material(materials.get(id));
+          current = id;
+        }
+        int i = imageRasterXY * 3;
+        pixelNormalX = gbufferNormal[i];
+        pixelNormalY = gbufferNormal[i + 1];
+        pixelNormalZ = gbufferNormal[i + 2];
+        if (textureMipmap != null && enableTexture) textureLevel(gbufferLevel[imageRasterXY]);
+        ttx = gbufferTexture[imageRasterXY * 2];
+        tty = gbufferTexture[imageRasterXY * 2 + 1];
+        // the inverse of the projection in VertexStage.transform
+        double z = farClip * (depth(imageRasterXY) - 1);
+        phongLighting((w2 - imageRasterX) * z / focalLength, (h2 - imageRasterY) * z / focalLength, z);
+        writePixel();
+      }
+    }
+  }
+
+  /**
+   * Takes over the lighting parameters of the deferred obj.
+   */
+  private void material(Shader shader) {
+    ambientColor = shader.ambientColor;
+    diffuseColor = shader.diffuseColor;
+    specularColor = shader.specularColor;
+    specularPower = shader.specularPower;
+    lightColor = shader.lightColor;
+    lightPoint = shader.lightPoint;
+    lightRange = shader.lightRange;
+    textureRaster = shader.textureRaster;
+    textureWidth = shader.textureWidth;
+    textureHeight = shader.textureHeight;
+    textureMipmap = shader.textureMipmap;
+    reflectionMap = shader.reflectionMap;
+    reflectionAlpha = shader.reflectionAlpha;
+    reflectionMatrix = shader.reflectionMatrix;
+  }
+
+  private void drawTile(int tile) {
+    int minX = tile % tilesX * TILE_SIZE;
+    int minY = tile / tilesX * TILE_SIZE;
+    int[] bin = bins[tile];
+    Shader shader = null;
+    int d = -1;
+    for (int i = 0; i < binSize[tile]; i += 2) {
+      if (bin[i] != d) {
+        d = bin[i];
+        Shader previous = shader;
+        shader = draws.get(d).fork();
+        if (previous != null) {
+          shader.pixelTests = previous.pixelTests;
+          shader.pixelRejects = previous.pixelRejects;
+          shader.pixelsShaded = previous.pixelsShaded;
+        }
+        shader.clipMinX = minX;
+        shader.clipMinY = minY;
+        shader.clipMaxX = Math.min(minX + TILE_SIZE, imageWidth) - 1;
+        shader.clipMaxY = Math.min(minY + TILE_SIZE, imageHeight) - 1;
+      }
+      shader.face(bin[i + 1]);
+      shader.drawFace();
+    }
+    if (shader != null) {
+      tilePixelTests.addAndGet(shader.pixelTests);
+      tilePixelRejects.addAndGet(shader.pixelRejects);
+      tilePixelsShaded.addAndGet(shader.pixelsShaded);
+    }
+  }
+
+  /**
+   * A copy sharing the obj, material and rasters but with its own face and pixel state.
+   */
+  private Shader fork() {
+    Shader shader;
+    try {
+      shader = (Shader) super.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new Error();
     }
+    shader.gouraudIllumination = new double[3 * ILLUMINATION_SIZE];
+    shader.barycentricCoordinates = new double[4];
+    shader.v0 = new Pnt();
+    shader.v1 = new Pnt();
+    shader.v2 = new Pnt();
+    shader.pixelTests = 0;
+    shader.pixelRejects = 0;
+    shader.pixelsShaded = 0;
+    shader.reflectionMatrix = reflectionMatrix.clone();
+    shader.pipeline();
+    return shader;
   }
 
   public void drawEdge() {
@@ -307,139 +678,606 @@ public class Shader {
     return a * r[0] + b * r[1] + c * r[2];
   }
 
-  public Col getTextureColor() {
-    if (textureHeight == 0) return new Col(1, 1, 1, 1);
+  public int getTextureColor() {
+    if (textureHeight == 0) return -1;
     int tx = Math.min(Math.max(0, (int) (ttx * textureWidth)), textureWidth - 1);
     int ty = Math.min(Math.max(0, (int) (tty * textureHeight)), textureHeight - 1);
-    return new Col(textureRaster[(textureHeight - 1 - ty) * textureWidth + tx]);
+    return textureRaster[(textureHeight - 1 - ty) * textureWidth + tx];
+  }
+
+  private void viewerIllumination(double x, double y, double px, double py, double pz, int fn, double[] g, int i) {
+    double vx = imageWidth / 2.0 - 0.5 - x;
+    double vy = imageHeight / 2.0 - 0.5 - y;
+    double vz = focalLength;
+    double length = Math.sqrt(vx * vx + vy * vy + vz * vz);
+    illuminationRgb(px, py, pz, normal[fn], normal[fn + 1], normal[fn + 2], vx / length, vy / length, vz / length);
+    g[i++] = diffuseR;
+    g[i++] = diffuseG;
+    g[i++] = diffuseB;
+    g[i++] = diffuseA;
+    g[i++] = specularR;
+    g[i++] = specularG;
+    g[i] = specularB;
   }
 
   public void createLambertIllumination() {
     //gouraudIllumination[0] = phongReflection(light, 0, normal, fn0, new double[3], 0);
-    Pnt vertex = new Pnt()
-        .add(vertexTrue[fv0], 1.0 / 3)
-        .add(vertexTrue[fv1], 1.0 / 3)
-        .add(vertexTrue[fv2], 1.0 / 3);
-    Pnt vs = new Pnt().add(v0, 1.0 / 3).add(v1, 1.0 / 3).add(v2, 1.0 / 3);
-    Pnt viewer = viewerVector(vs.x, vs.y, imageWidth, imageHeight, focalLength);
-    Col[] illuminationRgb = illuminationRgb(vertex, normal[fn0], viewer);
-    gouraudIllumination[0] = illuminationRgb[0];
-    gouraudIllumination[1] = illuminationRgb[1];
+    double[] p = vertexTrue;
+    double third = 1.0 / 3;
+    viewerIllumination(v0.x * third + v1.x * third + v2.x * third, v0.y * third + v1.y * third + v2.y * third,
+        p[fv0] * third + p[fv1] * third + p[fv2] * third,
+        p[fv0 + 1] * third + p[fv1 + 1] * third + p[fv2 + 1] * third,
+        p[fv0 + 2] * third + p[fv1 + 2] * third + p[fv2 + 2] * third, fn0, gouraudIllumination, 0);
   }
 
+  /**
+   * Vertex illumination of the face, each (vertex, normal) pair of the obj is lit once per frame.
+   */
   public void createGouraudIllumination() {
-    int[] fni = {fn0, fn1, fn2};
-    int[] fvi = {fv0, fv1, fv2};
-    Pnt[] xy = {v0, v1, v2};
-    for (int i = 0; i < 3; i++) {
-      Pnt viewer = viewerVector(xy[i].x, xy[i].y, imageWidth, imageHeight, focalLength);
-      //double v = phongReflection(light, 0, normal, fni[i], viewer, 0);
-      int fv = fvi[i];
-      Col[] illuminationRgb = illuminationRgb(vertexTrue[fv], normal[fni[i]], viewer);
-      gouraudIllumination[2 * i] = illuminationRgb[0];
-      gouraudIllumination[2 * i + 1] = illuminationRgb[1];
+    int[] pair = currentStage.pair;
+    int i = iface * 3;
+    gouraudVertex(v0, fv0, fn0, pair[i], 0);
+    gouraudVertex(v1, fv1, fn1, pair[i + 1], ILLUMINATION_SIZE);
+    gouraudVertex(v2, fv2, fn2, pair[i + 2], 2 * ILLUMINATION_SIZE);
+  }
+
+  private void gouraudVertex(Pnt v, int fv, int fn, int pair, int i) {
+    VertexStage stage = currentStage;
+    double[] cache = stage.pairIllumination;
+    int j = pair * ILLUMINATION_SIZE;
+    if (stage.pairFrame[pair] != stage.frame) {
+      double[] p = vertexTrue;
+      viewerIllumination(v.x, v.y, p[fv], p[fv + 1], p[fv + 2], fn, cache, j);
+      stage.pairFrame[pair] = stage.frame;
     }
+    System.arraycopy(cache, j, gouraudIllumination, i, ILLUMINATION_SIZE);
   }
 
-  public void drawFace() {
-    if (v0.z < 0 && v1.z < 0 && v2.z < 0) return;
+  /**
+   * A vertex is in front of the near plane, the projection and the winding of the face are not valid.
+   */
+  private boolean nearPlane() {
     double nearClip = 1 - this.nearClip / this.farClip;
-    if (v0.z > nearClip || v1.z > nearClip || v2.z > nearClip) return;
-    barycentricCoordinates[3] = 0; // clear cache
-    int minX = Math.max((int) Math.floor(Math.min(v0.x, Math.min(v1.x, v2.x))), 0);
-    int maxX = Math.min((int) Math.ceil(Math.max(v0.x, Math.max(v1.x, v2.x))), imageWidth - 1);
-    int minY = Math.max((int) Math.floor(Math.min(v0.y, Math.min(v1.y, v2.y))), 0);
-    int maxY = Math.min((int) Math.ceil(Math.max(v0.y, Math.max(v1.y, v2.y))), imageHeight - 1);
-    boolean createIllumination = true;
+    return v0.z > nearClip || v1.z > nearClip || v2.z > nearClip;
+  }
 
-    for (imageRasterY = minY; imageRasterY <= maxY; imageRasterY++) {
-      for (imageRasterX = minX; imageRasterX <= maxX; imageRasterX++) {
-        imageRasterXY = (imageHeight - 1 - imageRasterY) * imageWidth + imageRasterX;
-        if (!barycentric(imageRasterX, imageRasterY, v0.x, v0.y, v1.x, v1.y, v2.x, v2.y, barycentricCoordinates)) continue;
-        double z = barycentricValue(v0.z, v1.z, v2.z, barycentricCoordinates);
-        if (zbuffer[imageRasterXY] > z) continue;
-        zbuffer[imageRasterXY] = z;
-        if (createIllumination) {
-          if (enableIllumination == Illumination.LAMBERT) createLambertIllumination();
-          if (enableIllumination == Illumination.GOURAUD) createGouraudIllumination();
-          createIllumination = false;
+  /**
+   * Sets the face bounds clipped to the clip rectangle.
+   * @return false if there is nothing to draw
+   */
+  public boolean clipFace() {
+    if (v0.z < 0 && v1.z < 0 && v2.z < 0) return false;
+    if (nearPlane()) return false;
+    faceMinX = Math.max((int) Math.floor(Math.min(v0.x, Math.min(v1.x, v2.x))), clipMinX);
+    faceMaxX = Math.min((int) Math.ceil(Math.max(v0.x, Math.max(v1.x, v2.x))), clipMaxX);
+    faceMinY = Math.max((int) Math.floor(Math.min(v0.y, Math.min(v1.y, v2.y))), clipMinY);
+    faceMaxY = Math.min((int) Math.ceil(Math.max(v0.y, Math.max(v1.y, v2.y))), clipMaxY);
+    return faceMinX <= faceMaxX && faceMinY <= faceMaxY;
+  }
+
+  public void drawFace() {
+    if (!clipFace()) {
+      clippedFaces++; // the tile forks count nothing, bin() does
+      return;
+    }
+    clearTiles(faceMinX, faceMinY, faceMaxX, faceMaxY);
+    createIllumination = true;
+    if (textureMipmap != null || bumpMipmap != null) mipmapLevel();
+    // fixed-point vertices, outside of the guard band the products overflow long
+    if (!(Math.abs(v0.x) < GUARD_BAND && Math.abs(v0.y) < GUARD_BAND && Math.abs(v1.x) < GUARD_BAND
+        && Math.abs(v1.y) < GUARD_BAND && Math.abs(v2.x) < GUARD_BAND && Math.abs(v2.y) < GUARD_BAND)) {
+      drawFaceBarycentric();
+      return;
+    }
+    long x0 = Math.round(v0.x * SUBPIXEL);
+    long y0 = Math.round(v0.y * SUBPIXEL);
+    long x1 = Math.round(v1.x * SUBPIXEL);
+    long y1 = Math.round(v1.y * SUBPIXEL);
+    long x2 = Math.round(v2.x * SUBPIXEL);
+    long y2 = Math.round(v2.y * SUBPIXEL);
+    long area = (x1 - x0) * (y2 - y0) - (y1 - y0) * (x2 - x0);
+    if (area <= 0) return;
+    double areaInverse = 1.0 / area;
+    barycentricCoordinates[3] = areaInverse;
+    // edge functions w = a * x + b * y + c, the edge opposite to the vertex, positive inside
+    long a0 = y1 - y2;
+    long b0 = x2 - x1;
+    long c0 = -a0 * x1 - b0 * y1;
+    long a1 = y2 - y0;
+    long b1 = x0 - x2;
+    long c1 = -a1 * x2 - b1 * y2;
+    long a2 = y0 - y1;
+    long b2 = x1 - x0;
+    long c2 = -a2 * x0 - b2 * y0;
+    // top-left fill rule, the pixels on the other edges belong to the neighbour face
+    long bias0 = a0 > 0 || a0 == 0 && b0 < 0 ? 0 : -1;
+    long bias1 = a1 > 0 || a1 == 0 && b1 < 0 ? 0 : -1;
+    long bias2 = a2 > 0 || a2 == 0 && b2 < 0 ? 0 : -1;
+    a0 *= SUBPIXEL; b0 *= SUBPIXEL; c0 += bias0;
+    a1 *= SUBPIXEL; b1 *= SUBPIXEL; c1 += bias1;
+    a2 *= SUBPIXEL; b2 *= SUBPIXEL; c2 += bias2;
+    // the depth plane z = zc + zx * x + zy * y and the nearest vertex for the hierarchical z
+    double zx = (a0 * v0.z + a1 * v1.z + a2 * v2.z) * areaInverse;
+    double zy = (b0 * v0.z + b1 * v1.z + b2 * v2.z) * areaInverse;
+    double zc = ((c0 - bias0) * v0.z + (c1 - bias1) * v1.z + (c2 - bias2) * v2.z) * areaInverse;
+    double faceNearZ = enableOcclusion ? Math.max(v0.z, Math.max(v1.z, v2.z)) : Double.POSITIVE_INFINITY;
+
+    for (int blockY = faceMinY & -BLOCK_SIZE; blockY <= faceMaxY; blockY += BLOCK_SIZE) {
+      int minY = Math.max(blockY, faceMinY);
+      int maxY = Math.min(blockY + BLOCK_SIZE - 1, faceMaxY);
+      for (int blockX = faceMinX & -BLOCK_SIZE; blockX <= faceMaxX; blockX += BLOCK_SIZE) {
+        int minX = Math.max(blockX, faceMinX);
+        int maxX = Math.min(blockX + BLOCK_SIZE - 1, faceMaxX);
+        int block = blockY / BLOCK_SIZE * blocksX + blockX / BLOCK_SIZE;
+        if (hiz[block] > faceNearZ) continue; // the block is in front of the face
+        hizDirty[block] = true;
+        // the block corners where the edge functions are maximal and minimal
+        long max0 = a0 * (a0 > 0 ? maxX : minX) + b0 * (b0 > 0 ? maxY : minY) + c0;
+        long max1 = a1 * (a1 > 0 ? maxX : minX) + b1 * (b1 > 0 ? maxY : minY) + c1;
+        long max2 = a2 * (a2 > 0 ? maxX : minX) + b2 * (b2 > 0 ? maxY : minY) + c2;
+        if ((max0 | max1 | max2) < 0) continue; // the block is outside of an edge
+        long min0 = a0 * (a0 > 0 ? minX : maxX) + b0 * (b0 > 0 ? minY : maxY) + c0;
+        long min1 = a1 * (a1 > 0 ? minX : maxX) + b1 * (b1 > 0 ? minY : maxY) + c1;
+        long min2 = a2 * (a2 > 0 ? minX : maxX) + b2 * (b2 > 0 ? minY : maxY) + c2;
+        boolean inside = (min0 | min1 | min2) >= 0;
+        long w0y = a0 * minX + b0 * minY + c0;
+        long w1y = a1 * minX + b1 * minY + c1;
+        long w2y = a2 * minX + b2 * minY + c2;
+        for (imageRasterY = minY; imageRasterY <= maxY; imageRasterY++, w0y += b0, w1y += b1, w2y += b2) {
+          long w0 = w0y;
+          long w1 = w1y;
+          long w2 = w2y;
+          for (imageRasterX = minX; imageRasterX <= maxX; imageRasterX++, w0 += a0, w1 += a1, w2 += a2) {
+            if (!inside && (w0 | w1 | w2) < 0) continue;
+            barycentricCoordinates[0] = (w0 - bias0) * areaInverse;
+            barycentricCoordinates[1] = (w1 - bias1) * areaInverse;
+            barycentricCoordinates[2] = (w2 - bias2) * areaInverse;
+            drawPixel();
+          }
         }
-        // barycentric perspective correction, texture and normals
-        barycentricCoordinates[0] *= (1 - z) / (1 - v0.z);
-        barycentricCoordinates[1] *= (1 - z) / (1 - v1.z);
-        barycentricCoordinates[2] *= (1 - z) / (1 - v2.z);
-        ttx = barycentricValue(texture[ft0], texture[ft1], texture[ft2], barycentricCoordinates);
-        tty = barycentricValue(texture[ft0 + 1], texture[ft1 + 1], texture[ft2 + 1], barycentricCoordinates);
-        Col[] col = visiblePixelMethod.get();
-        if (col[0].a < 1) {
-          // full opaque add
-          col[0] = new Col().opaque().add(new Col(imageRaster[imageRasterXY]), 1 - col[0].a).add(col[0], col[0].a);
+        if (inside && enableOcclusion && minX == blockX && minY == blockY
+            && maxX == Math.min(blockX + BLOCK_SIZE - 1, imageWidth - 1)
+            && maxY == Math.min(blockY + BLOCK_SIZE - 1, imageHeight - 1)) {
+          // every pixel of the block is now at least as near as the face
+          double z = zc + Math.min(zx * minX, zx * maxX) + Math.min(zy * minY, zy * maxY) - OCCLUSION_EPSILON;
+          if (z > hiz[block]) hiz[block] = z;
         }
-        imageRaster[imageRasterXY] = col[0].add(col[1], 1).argb();
       }
     }
   }
 
+  /**
+   * Picks the texture and bump map levels of the face from the ratio of its uv and screen areas.
+   */
+  public void mipmapLevel() {
+    double[] t = texture;
+    double uvArea = Math.abs((t[ft1] - t[ft0]) * (t[ft2 + 1] - t[ft0 + 1]) - (t[ft1 + 1] - t[ft0 + 1]) * (t[ft2] - t[ft0]));
+    double screenArea = Math.abs((v1.x - v0.x) * (v2.y - v0.y) - (v1.y - v0.y) * (v2.x - v0.x));
+    if (textureMipmap != null && enableTexture) textureLevel(textureMipmap.level(uvArea, screenArea));
+    if (bumpMipmap != null) {
+      int level = bumpMipmap.level(uvArea, screenArea);
+      bumpRaster = bumpMipmap.raster[level];
+      bumpWidth = bumpMipmap.width[level];
+      bumpHeight = bumpMipmap.height[level];
+    }
+  }
+
+  private void textureLevel(int level) {
+    textureLevel = level;
+    textureRaster = textureMipmap.raster[level];
+    textureWidth = textureMipmap.width[level];
+    textureHeight = textureMipmap.height[level];
+  }
+
+  /**
+   * Per pixel barycentric coordinates, for the faces that do not fit into the fixed-point guard band.
+   */
+  public void drawFaceBarycentric() {
+    barycentricCoordinates[3] = 0; // clear cache
+    for (imageRasterY = faceMinY; imageRasterY <= faceMaxY; imageRasterY++) {
+      for (imageRasterX = faceMinX; imageRasterX <= faceMaxX; imageRasterX++) {
+        if (!barycentric(imageRasterX, imageRasterY, v0.x, v0.y, v1.x, v1.y, v2.x, v2.y, barycentricCoordinates)) continue;
+        drawPixel();
+      }
+    }
+  }
+
+  /**
+   * Depth test and shading of the covered pixel imageRasterX, imageRasterY.
+   */
+  public void drawPixel() {
+    imageRasterXY = (imageHeight - 1 - imageRasterY) * imageWidth + imageRasterX;
+    double z = barycentricValue(v0.z, v1.z, v2.z, barycentricCoordinates);
+    pixelTests++;
+    if (!depthTest(z)) {
+      pixelRejects++;
+      return;
+    }
+    if (createIllumination) {
+      if (enableIllumination == Illumination.LAMBERT) createLambertIllumination();
+      if (enableIllumination == Illumination.GOURAUD) createGouraudIllumination();
+      createIllumination = false;
+    }
+    // barycentric perspective correction, texture and normals
+    barycentricCoordinates[0] *= (1 - z) / (1 - v0.z);
+    barycentricCoordinates[1] *= (1 - z) / (1 - v1.z);
+    barycentricCoordinates[2] *= (1 - z) / (1 - v2.z);
+    ttx = barycentricValue(texture[ft0], texture[ft1], texture[ft2], barycentricCoordinates);
+    tty = barycentricValue(texture[ft0 + 1], texture[ft1 + 1], texture[ft2 + 1], barycentricCoordinates);
+    if (materialId >= 0) {
+      deferPixel();
+      return;
+    }
+    visiblePixelMethod.run();
+    writePixel();
+    if (enableDeferred) gbufferMaterial[imageRasterXY] = -1;
+  }
+
+  /**
+   * Writes the depth if the pixel is not behind the stored one, z from 0 far to 1 near.
+   */
+  public boolean depthTest(double z) {
+    int xy = imageRasterXY;
+    if (depthFormat == DepthFormat.DOUBLE) {
+      if (zbuffer[xy] > z) return false;
+      zbuffer[xy] = z;
+    } else if (depthFormat == DepthFormat.FLOAT) {
+      float depth = (float) z;
+      if (z < 0 || zbufferFloat[xy] > depth) return false;
+      zbufferFloat[xy] = depth;
+    } else {
+      int depth = (int) (z * INT24_MAX);
+      if (z < 0 || zbufferInt[xy] > depth) return false;
+      zbufferInt[xy] = depth;
+    }
+    return true;
+  }
+
+  /**
+   * Geometry pass, the pixel is lit later by shadeDeferred().
+   */
+  private void deferPixel() {
+    phongNormal();
+    int i = imageRasterXY * 3;
+    gbufferNormal[i] = (float) pixelNormalX;
+    gbufferNormal[i + 1] = (float) pixelNormalY;
+    gbufferNormal[i + 2] = (float) pixelNormalZ;
+    gbufferTexture[imageRasterXY * 2] = (float) ttx;
+    gbufferTexture[imageRasterXY * 2 + 1] = (float) tty;
+    gbufferLevel[imageRasterXY] = (byte) textureLevel;
+    gbufferMaterial[imageRasterXY] = materialId;
+  }
+
+  /**
+   * Blends the shaded diffuse and specular into imageRasterXY.
+   */
+  private void writePixel() {
+    double a = diffuseA;
+    if (a < 1) {
+      // full opaque add
+      int color = imageRaster[imageRasterXY];
+      diffuseR = (color >> 16 & 0xFF) / 255.0 * (1 - a) + diffuseR * a;
+      diffuseG = (color >> 8 & 0xFF) / 255.0 * (1 - a) + diffuseG * a;
+      diffuseB = (color & 0xFF) / 255.0 * (1 - a) + diffuseB * a;
+      a = 1;
+    }
+    imageRaster[imageRasterXY] = Col.argb(a, diffuseR + specularR, diffuseG + specularG, diffuseB + specularB);
+    pixelsShaded++;
+  }
+
   // cls(), addLight(), add()
   public void cls(int width, int height) {
     imageWidth = width;
     imageHeight = height;
     focalLength = FOCAL_LENGTH / FILM_HEIGHT * imageHeight;
     if (imageRaster == null || imageRaster.length != width * height) imageRaster = new int[width * height];
-    if (zbuffer == null || zbuffer.length != width * height) zbuffer = new double[width * height];
-    Arrays.fill(imageRaster, 0);
-    Arrays.fill(zbuffer, 0);
+    if (depthFormat != DepthFormat.DOUBLE) {
+      zbuffer = null;
+    } else if (zbuffer == null || zbuffer.length != width * height) {
+      zbuffer = new double[width * height];
+    }
+    if (depthFormat != DepthFormat.FLOAT) {
+      zbufferFloat = null;
+    } else if (zbufferFloat == null || zbufferFloat.length != width * height) {
+      zbufferFloat = new float[width * height];
+    }
+    if (depthFormat != DepthFormat.INT24) {
+      zbufferInt = null;
+    } else if (zbufferInt == null || zbufferInt.length != width * height) {
+      zbufferInt = new int[width * height];
+    }
+    clipMinX = 0;
+    clipMinY = 0;
+    clipMaxX = width - 1;
+    clipMaxY = height - 1;
+    blocksX = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    int blocks = blocksX * ((height + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    if (hiz.length != blocks) {
+      hiz = new double[blocks];
+      hizDirty = new boolean[blocks];
+    }
+    Arrays.fill(hiz, 0);
+    Arrays.fill(hizDirty, false);
+    tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+    tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+    if (binSize.length != tilesX * tilesY) {
+      bins = new int[tilesX * tilesY][0];
+      binSize = new int[tilesX * tilesY];
+      tileCleared = new boolean[tilesX * tilesY];
+    }
+    Arrays.fill(tileCleared, false);
+    draws.clear();
+    Arrays.fill(binSize, 0);
+    materials.clear();
+    pixelTests = 0;
+    pixelRejects = 0;
+    pixelsShaded = 0;
+    faces = 0;
+    backFaces = 0;
+    clippedFaces = 0;
+    vertexNanos = 0;
+    rasterNanos = 0;
+    shadeNanos = 0;
+    if (enableDeferred) {
+      if (gbufferMaterial == null || gbufferMaterial.length != width * height) {
+        gbufferMaterial = new int[width * height];
+        gbufferNormal = new float[width * height * 3];
+        gbufferTexture = new float[width * height * 2];
+        gbufferLevel = new byte[width * height];
+      }
+    }
     lights = new ArrayList<>();
     lightColor = null;
     lightPoint = null;
+    lightRange = null;
+    tileLights = null;
+  }
+
+  /**
+   * Clears the tiles of the rect (y up) nothing was drawn into yet.
+   */
+  public void clearTiles(int minX, int minY, int maxX, int maxY) {
+    for (int ty = minY / TILE_SIZE; ty <= maxY / TILE_SIZE; ty++) {
+      for (int tx = minX / TILE_SIZE; tx <= maxX / TILE_SIZE; tx++) {
+        if (!tileCleared[ty * tilesX + tx]) clearTile(ty * tilesX + tx);
+      }
+    }
+  }
+
+  private void clearTile(int tile) {
+    tileCleared[tile] = true;
+    int minX = tile % tilesX * TILE_SIZE;
+    int minY = tile / tilesX * TILE_SIZE;
+    int maxX = Math.min(minX + TILE_SIZE, imageWidth) - 1;
+    int maxY = Math.min(minY + TILE_SIZE, imageHeight) - 1;
+    for (int y = minY; y <= maxY; y++) {
+      int from = (imageHeight - 1 - y) * imageWidth + minX;
+      int to = from + maxX - minX + 1;
+      if (background == null) {
+        Arrays.fill(imageRaster, from, to, clearColor);
+      } else {
+        System.arraycopy(background, from, imageRaster, from, to - from);
+      }
+      if (zbuffer != null) Arrays.fill(zbuffer, from, to, 0);
+      if (zbufferFloat != null) Arrays.fill(zbufferFloat, from, to, 0);
+      if (zbufferInt != null) Arrays.fill(zbufferInt, from, to, 0);
+      if (enableDeferred) Arrays.fill(gbufferMaterial, from, to, -1);
+    }
+  }
+
+  /**
+   * End of the frame, clears the tiles nothing was drawn into.
+   */
+  public void finish() {
+    clearTiles(0, 0, imageWidth - 1, imageHeight - 1);
   }
 
   public void addLight(Pnt xyz, Col color) {
+    addLight(xyz, color, Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * @param range the light fades out to nothing at this distance
+   */
+  public void addLight(Pnt xyz, Col color, double range) {
     if (color.a != 1) throw new IllegalStateException();
+    if (!(range > 0)) throw new IllegalArgumentException();
     Light light = new Light();
     light.xyz = xyz.clone();
     light.color = color.clone();
+    light.range = range;
     lights.add(light);
   }
 
-  public void add(Obj obj, Matrix tm) {
-    if (lights != null) {
-      int size = lights.size();
-      lightColor = new Col[size];
-      lightPoint = new Pnt[size];
-      for (int i = 0; i < size; i++) {
-        Light light = lights.get(i);
-        lightColor[i] = light.color;
-        lightPoint[i] = light.xyz;
+  /**
+   * The lights of the frame into arrays, the lights with a range are listed in the screen tiles they reach.
+   */
+  private void createLights() {
+    int size = lights.size();
+    lightColor = new Col[size];
+    lightPoint = new Pnt[size];
+    lightRange = new double[size];
+    allLights = new int[size];
+    boolean range = false;
+    for (int i = 0; i < size; i++) {
+      Light light = lights.get(i);
+      lightColor[i] = light.color;
+      lightPoint[i] = light.xyz;
+      lightRange[i] = light.range;
+      allLights[i] = i;
+      range |= light.range != Double.POSITIVE_INFINITY;
+    }
+    lights = null;
+    tileLights = null;
+    if (!range) return;
+    int[] rect = new int[size * 4];
+    int[] count = new int[tilesX * tilesY];
+    for (int i = 0; i < size; i++) {
+      lightTiles(i, rect, i * 4);
+      for (int ty = rect[i * 4 + 1]; ty <= rect[i * 4 + 3]; ty++) {
+        for (int tx = rect[i * 4]; tx <= rect[i * 4 + 2]; tx++) count[ty * tilesX + tx]++;
+      }
+    }
+    tileLights = new int[count.length][];
+    for (int tile = 0; tile < count.length; tile++) {
+      tileLights[tile] = new int[count[tile]];
+      count[tile] = 0;
+    }
+    for (int i = 0; i < size; i++) {
+      for (int ty = rect[i * 4 + 1]; ty <= rect[i * 4 + 3]; ty++) {
+        for (int tx = rect[i * 4]; tx <= rect[i * 4 + 2]; tx++) {
+          int tile = ty * tilesX + tx;
+          tileLights[tile][count[tile]++] = i;
+        }
+      }
+    }
+  }
+
+  /**
+   * Conservative screen tiles of the light sphere, rect is min x, min y, max x, max y, empty if min > max.
+   */
+  private void lightTiles(int i, int[] rect, int j) {
+    Pnt p = lightPoint[i];
+    // the shaded point and the pixel center are not exactly on the same ray
+    sphereRect(p.x, p.y, p.z, lightRange[i], 2, TILE_SIZE, rect, j);
+  }
+
+  /**
+   * Cells of the size (y up) covered by the camera space sphere plus the margin in pixels,
+   * all of them if the sphere reaches the near plane.
+   */
+  private void sphereRect(double x, double y, double z, double r, double margin, int size, int[] rect, int j) {
+    double near = -z - r; // distances in front of the camera
+    double far = -z + r;
+    double minX = 0;
+    double minY = 0;
+    double maxX = imageWidth - 1;
+    double maxY = imageHeight - 1;
+    if (far < nearClip) {
+      maxX = -1; // behind the camera
+    } else if (near > nearClip) {
+      double w2 = imageWidth / 2.0 - 0.5;
+      double h2 = imageHeight / 2.0 - 0.5;
+      minX = w2 + focalLength * (x - r) / (x - r < 0 ? near : far) - margin;
+      maxX = w2 + focalLength * (x + r) / (x + r > 0 ? near : far) + margin;
+      minY = h2 + focalLength * (y - r) / (y - r < 0 ? near : far) - margin;
+      maxY = h2 + focalLength * (y + r) / (y + r > 0 ? near : far) + margin;
+    }
+    if (maxX < 0 || maxY < 0 || minX > imageWidth - 1 || minY > imageHeight - 1) {
+      rect[j] = 0; rect[j + 1] = 0; rect[j + 2] = -1; rect[j + 3] = -1;
+      return;
+    }
+    rect[j] = (int) Math.max(minX, 0) / size;
+    rect[j + 1] = (int) Math.max(minY, 0) / size;
+    rect[j + 2] = (int) Math.min(maxX, imageWidth - 1) / size;
+    rect[j + 3] = (int) Math.min(maxY, imageHeight - 1) / size;
+  }
+
+  /**
+   * Hierarchical z test of a camera space bounding sphere, true if it is behind everything drawn so far.
+   */
+  public boolean occluded(double x, double y, double z, double r) {
+    if (!enableOcclusion) return false;
+    double near = -z - r;
+    if (near <= nearClip) return false;
+    double nearZ = 1 - near / farClip;
+    sphereRect(x, y, z, r, 1, BLOCK_SIZE, occlusionRect, 0);
+    for (int by = occlusionRect[1]; by <= occlusionRect[3]; by++) {
+      for (int bx = occlusionRect[0]; bx <= occlusionRect[2]; bx++) {
+        int block = by * blocksX + bx;
+        if (hiz[block] > nearZ) continue;
+        if (!hizDirty[block]) return false;
+        hizDirty[block] = false; // the faces only raise hiz when they cover the whole block
+        hiz[block] = Math.max(hiz[block], blockDepth(bx, by) - OCCLUSION_EPSILON);
+        if (hiz[block] <= nearZ) return false;
       }
-      lights = null;
     }
-    // TODO: 2025-09-30 review this method, it's a mess
+    return true;
+  }
+
+  /**
+   * The stored depth of the pixel in any depth format.
+   */
+  private double depth(int xy) {
+    return depthFormat == DepthFormat.DOUBLE ? zbuffer[xy]
+        : depthFormat == DepthFormat.FLOAT ? zbufferFloat[xy] : (double) zbufferInt[xy] / INT24_MAX;
+  }
+
+  /**
+   * The farthest depth in the block.
+   */
+  private double blockDepth(int bx, int by) {
+    double depth = 1;
+    int minX = bx * BLOCK_SIZE;
+    int maxX = Math.min(minX + BLOCK_SIZE, imageWidth) - 1;
+    int minY = by * BLOCK_SIZE;
+    int maxY = Math.min(minY + BLOCK_SIZE, imageHeight) - 1;
+    for (int y = minY; y <= maxY; y++) {
+      int xy = (imageHeight - 1 - y) * imageWidth + minX;
+      for (int x = minX; x <= maxX; x++, xy++) {
+        double z = depth(xy);
+        if (z < depth) depth = z;
+      }
+    }
+    return depth;
+  }
+
+  /**
+   * The lights reaching the bounding box of the transformed obj, for the vertex illumination.
+   */
+  private void objLights(VertexStage vertexStage) {
+    if (tileLights == null) {
+      lightList = allLights;
+      lightListSize = allLights.length;
+      return;
+    }
+    int[] list = vertexStage.lightList; // the binned faces keep it until flush(), as they keep the stage
+    if (list.length < lightPoint.length) list = vertexStage.lightList = new int[lightPoint.length];
+    int size = 0;
+    for (int i = 0; i < lightPoint.length; i++) {
+      Pnt p = lightPoint[i];
+      double dx = Math.max(0, Math.max(vertexStage.minX - p.x, p.x - vertexStage.maxX));
+      double dy = Math.max(0, Math.max(vertexStage.minY - p.y, p.y - vertexStage.maxY));
+      double dz = Math.max(0, Math.max(vertexStage.minZ - p.z, p.z - vertexStage.maxZ));
+      if (dx * dx + dy * dy + dz * dz < lightRange[i] * lightRange[i]) list[size++] = i;
+    }
+    lightList = list;
+    lightListSize = size;
+  }
+
+  public void add(Obj obj, Mat tm) {
+    // the binned faces keep their vertex stage until flush()
+    add(obj, tm, pool == null ? vertexStage : new VertexStage());
+  }
+
+  public void add(Obj obj, Mat tm, VertexStage vertexStage) {
+    add(vertexStage.mesh(obj), tm, vertexStage);
+  }
+
+  /**
+   * The tangents of the mesh, or of the tangentBitangent field for a bare obj.
+   */
+  public void add(Mesh mesh, Mat tm, VertexStage vertexStage) {
+    Obj obj = mesh.obj;
+    if (lights != null) createLights();
+    double[] tangentBitangent = mesh.tangentBitangent == null ? this.tangentBitangent : mesh.tangentBitangent;
+    long start = System.nanoTime();
+    vertexStage.transform(mesh, tangentBitangent, tm, focalLength, imageWidth, imageHeight, farClip);
+    objLights(vertexStage);
+    long transformed = System.nanoTime();
+    vertexNanos += transformed - start;
+    faces += mesh.faces();
+    backFaces += mesh.faces() - vertexStage.frontFaces;
     this.face = obj.face;
     this.texture = obj.texture == null ? new double[2] : obj.texture;
-    this.vertex = new Pnt[obj.vertex.length / 3];
-    this.vertexTrue = new Pnt[obj.vertex.length / 3];
-    this.normal = new Pnt[obj.normal.length / 3];
-//    rotate(vertex, transformation[3], 2);
-//    rotate(normal, transformation[3], 2);
-    for (int i = 0; i < normal.length; i++) {
-      Matrix xyz = tm.times(new Pnt(obj.normal, i * 3).toMatrix(0));
-      normal[i] = Pnt.fromMatrix(xyz);
-    }
-    tangentBitangent = tangentBitangent == null ? new Pnt[0] : Arrays.copyOf(tangentBitangent, tangentBitangent.length);
-    for (int i = 0; i < tangentBitangent.length; i++) {
-      Matrix xyz = tm.times(tangentBitangent[i].toMatrix(0));
-      tangentBitangent[i] = Pnt.fromMatrix(xyz);
-    }
-    double w2 = imageWidth / 2.0 - 0.5;
-    double h2 = imageHeight / 2.0 - 0.5;
-    for (int i = 0; i < vertex.length; i++) {
-      Matrix xyz = tm.times(new Pnt(obj.vertex, i * 3).toMatrix(1));
-      Pnt vt = Pnt.fromMatrix(xyz);
-      vertexTrue[i] = vt;
-      vertex[i] = new Pnt(w2 - focalLength * vt.x / vt.z, h2 - focalLength * vt.y / vt.z, (farClip + vt.z) / farClip);
-    };
+    this.vertex = vertexStage.vertex;
+    this.vertexTrue = vertexStage.vertexTrue;
+    this.normal = vertexStage.normal;
+    this.tangentBitangent = vertexStage.tangentBitangent;
+    this.currentStage = vertexStage;
+    if (enableIllumination == Illumination.GOURAUD) vertexStage.pairs(obj);
     rasterization();
+    rasterNanos += System.nanoTime() - transformed;
   }
 
   public static Pnt[] computeTangentBitangent(
@@ -469,12 +1307,12 @@ public class Shader {
     return new Pnt[]{new Pnt(tx, ty, tz), new Pnt(bx, by, bz)};
   }
 
-  public static Pnt[] computeTangentBitangent(Obj obj) {
+  public static double[] computeTangentBitangent(Obj obj) {
     int[] face = obj.face;
     double[] vertex = obj.vertex;
     double[] texture = obj.texture;
-    Pnt[] tangentBitangent = new Pnt[2 * face.length / 9];
-    for (int i = 0, tbi = 0; i < face.length; tbi += 2) {
+    double[] tangentBitangent = new double[6 * face.length / 9];
+    for (int i = 0, tbi = 0; i < face.length; tbi += 6) {
       int fv0 = face[i++] * 3;
       int fn0 = face[i++] * 3;
       int ft0 = face[i++] * 2;
@@ -501,7 +1339,12 @@ public class Shader {
       double t2v = texture[ft2 + 1];
       Pnt[] tb = Shader
           .computeTangentBitangent(v0x, v0y, v0z, t0u, t0v, v1x, v1y, v1z, t1u, t1v, v2x, v2y, v2z, t2u, t2v);
-      System.arraycopy(tb, 0, tangentBitangent, tbi, 2);
+      tangentBitangent[tbi] = tb[0].x;
+      tangentBitangent[tbi + 1] = tb[0].y;
+      tangentBitangent[tbi + 2] = tb[0].z;
+      tangentBitangent[tbi + 3] = tb[1].x;
+      tangentBitangent[tbi + 4] = tb[1].y;
+      tangentBitangent[tbi + 5] = tb[1].z;
     }
     return tangentBitangent;
   }
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk;
+
+/**
+ * Counters of the last frame, the common ones and the ones specific to EngineNbs.
+ */
+public class Stats extends FrameStats {
+  public long[] sortKeys = new long[0]; // in the draw order, see RenderQueue, reused between the frames
+  public int sortKeyCount; // of sortKeys in the last frame
+  public int[] illuminations = new int[Shader.Illumination.values().length]; // shapes and instances per shading level
+  public int instances; // drawn, after the culling of each one
+  public int lodShapes; // shapes and instances drawn at a coarser mesh level of detail
+  public int detailsDropped; // shapes and instances drawn without their bump and reflection maps
+  public double scale = 1; // of the rendered image per axis, below 1 with the dynamic resolution
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk;
+
+import ab.nbsnk.math.Mat;
+import ab.nbsnk.math.Sphere;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Transformed obj in flat xyz arrays, reused from frame to frame.
+ */
+public class VertexStage {
+  public double[] vertex = new double[0]; // screen units (y up), z from 0 far to 1 near
+  public double[] vertexTrue = new double[0]; // camera space
+  public double[] normal = new double[0];
+  public double[] tangentBitangent = new double[0]; // per face tangent xyz and bitangent xyz
+  public int[] pair = new int[0]; // per face corner, index of its (vertex, normal) pair
+  public double[] pairIllumination = new double[0]; // gouraud, ILLUMINATION_SIZE per pair
+  public int[] pairFrame = new int[0]; // when pairIllumination was computed
+  public int frame = 1; // incremented by transform()
+  public boolean[] front = new boolean[0]; // per face, facing the camera, by the object space plane
+  public int frontFaces;
+  public int[] lightList = new int[0]; // the lights reaching the obj, see Shader.objLights
+  public int vertices; // transformed, the ones of the front faces
+  public double minX; // camera space bounding box of the vertices
+  public double minY;
+  public double minZ;
+  public double maxX;
+  public double maxY;
+  public double maxZ;
+  private Obj pairObj;
+  private Mesh mesh;
+  private int[] vertexFrame = new int[0]; // when the vertex was transformed
+  private final Mat inverse = new Mat();
+
+  private static double[] ensure(double[] array, int length) {
+    return array.length == length ? array : new double[length];
+  }
+
+  /**
+   * Indexes the distinct (vertex, normal) pairs of the face stream, once per obj.
+   */
+  public void pairs(Obj obj) {
+    if (pairObj == obj) return;
+    int[] face = obj.face;
+    pair = new int[face.length / 3];
+    Map<Long, Integer> map = new HashMap<>();
+    for (int i = 0; i < pair.length; i++) {
+      long key = (long) face[i * 3] << 32 | face[i * 3 + 1] & 0xFFFFFFFFL;
+      Integer index = map.putIfAbsent(key, map.size());
+      pair[i] = index == null ? map.size() - 1 : index;
+    }
+    pairIllumination = new double[map.size() * Shader.ILLUMINATION_SIZE];
+    pairFrame = new int[map.size()];
+    pairObj = obj;
+  }
+
+  /**
+   * Mesh of a bare obj, the tangents are given to transform(), once per obj.
+   */
+  public Mesh mesh(Obj obj) {
+    if (mesh == null || mesh.obj != obj) mesh = new Mesh(obj, null);
+    return mesh;
+  }
+
+  /**
+   * Back faces by the camera position in object space, before any vertex is transformed.
+   * Only the vertices of the front faces are marked for this frame.
+   */
+  private void cull(Mesh mesh, Mat tm) {
+    int[] face = mesh.obj.face;
+    double[] plane = mesh.plane;
+    double[] cluster = mesh.cluster;
+    if (front.length != face.length / 9) front = new boolean[face.length / 9];
+    if (vertexFrame.length != mesh.obj.vertex.length / 3) vertexFrame = new int[mesh.obj.vertex.length / 3];
+    boolean singular = false;
+    try {
+      inverse.inverse(tm);
+    } catch (ArithmeticException e) {
+      singular = true; // flattened, the faces are edge on
+    }
+    double ex = inverse.m03, ey = inverse.m13, ez = inverse.m23;
+    int count = 0;
+    for (int f = 0, p = 0; f < front.length; f++, p += 4) {
+      if (f % Mesh.CLUSTER_SIZE == 0 && !singular) {
+        int c = f / Mesh.CLUSTER_SIZE * 9;
+        double wx = ex - cluster[c], wy = ey - cluster[c + 1], wz = ez - cluster[c + 2];
+        double d = wx * cluster[c + 4] + wy * cluster[c + 5] + wz * cluster[c + 6];
+        double s = Math.sqrt(Math.max(0, wx * wx + wy * wy + wz * wz - d * d));
+        if (d * cluster[c + 7] + s * cluster[c + 8] < -cluster[c + 3]) { // the whole cone faces away
+          int end = Math.min(front.length, f + Mesh.CLUSTER_SIZE);
+          Arrays.fill(front, f, end, false);
+          p += (end - f - 1) * 4;
+          f = end - 1;
+          continue;
+        }
+      }
+      boolean visible = !singular && plane[p] * ex + plane[p + 1] * ey + plane[p + 2] * ez + plane[p + 3] >= 0;
+      front[f] = visible;
+      if (!visible) continue;
+      count++;
+      vertexFrame[face[f * 9]] = frame;
+      vertexFrame[face[f * 9 + 3]] = frame;
+      vertexFrame[face[f * 9 + 6]] = frame;
+    }
+    frontFaces = count;
+  }
+
+  /**
+   * Affine 3x4 part of the matrix applied to the obj, vertices of the front faces projected to the screen.
+   */
+  public void transform(Obj obj, double[] tangentBitangent, Mat tm,
+      double focalLength, int imageWidth, int imageHeight, double farClip) {
+    transform(mesh(obj), tangentBitangent, tm, focalLength, imageWidth, imageHeight, farClip);
+  }
+
+  public void transform(Mesh mesh, double[] tangentBitangent, Mat tm,
+      double focalLength, int imageWidth, int imageHeight, double farClip) {
+    Obj obj = mesh.obj;
+    frame++;
+    cull(mesh, tm);
+    normal = ensure(normal, obj.normal.length);
+    tm.transformVectors(obj.normal, normal, normal.length);
+    double scale = Sphere.scale(tm);
+    boolean scaled = Math.abs(scale - 1) > 1e-9; // instances, the vectors keep the length of the obj ones
+    if (scaled) for (int i = 0; i < normal.length; i++) normal[i] /= scale;
+    int length = tangentBitangent == null ? 0 : tangentBitangent.length;
+    double[] tb = this.tangentBitangent = ensure(this.tangentBitangent, length);
+    tm.transformVectors(tangentBitangent, tb, length);
+    if (scaled) for (int i = 0; i < length; i++) tb[i] /= scale;
+
+    double m00 = tm.m00, m01 = tm.m01, m02 = tm.m02, m03 = tm.m03;
+    double m10 = tm.m10, m11 = tm.m11, m12 = tm.m12, m13 = tm.m13;
+    double m20 = tm.m20, m21 = tm.m21, m22 = tm.m22, m23 = tm.m23;
+    double[] source = obj.vertex;
+    double[] target = vertexTrue = ensure(vertexTrue, source.length);
+    double[] screen = vertex = ensure(vertex, source.length);
+    double w2 = imageWidth / 2.0 - 0.5;
+    double h2 = imageHeight / 2.0 - 0.5;
+    double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+    double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+    int[] vertexFrame = this.vertexFrame;
+    int frame = this.frame;
+    int count = 0;
+    for (int i = 0, j = 0; i < source.length; i += 3, j++) {
+      if (vertexFrame[j] != frame) continue;
+      count++;
+      double x = source[i];
+      double y = source[i + 1];
+      double z = source[i + 2];
+      double tx = m00 * x + m01 * y + m02 * z + m03;
+      double ty = m10 * x + m11 * y + m12 * z + m13;
+      double tz = m20 * x + m21 * y + m22 * z + m23;
+      target[i] = tx;
+      target[i + 1] = ty;
+      target[i + 2] = tz;
+      screen[i] = w2 - focalLength * tx / tz;
+      screen[i + 1] = h2 - focalLength * ty / tz;
+      screen[i + 2] = (farClip + tz) / farClip;
+      if (tx < minX) minX = tx;
+      if (tx > maxX) maxX = tx;
+      if (ty < minY) minY = ty;
+      if (ty > maxY) maxY = ty;
+      if (tz < minZ) minZ = tz;
+      if (tz > maxZ) maxZ = tz;
+    }
+    vertices = count;
+    this.minX = minX; this.minY = minY; this.minZ = minZ;
+    this.maxX = maxX; this.maxY = maxY; this.maxZ = maxZ;
+  }
+
+}
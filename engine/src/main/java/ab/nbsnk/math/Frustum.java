@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk.math;
+
+/**
+ * Camera view volume, the camera looks towards -z.
+ */
+public class Frustum {
+  private final Mat view = new Mat();
+  private double viewScale;
+  private double near;
+  private double far;
+  private double kx; // half width over the focal length
+  private double ky;
+  private double nx; // normalization of the side planes
+  private double ny;
+
+  /**
+   * @param view world to camera transformation
+   * @param focalLength in pixels
+   */
+  public Frustum set(Mat view, double focalLength, int width, int height, double near, double far) {
+    this.view.set(view);
+    this.viewScale = Sphere.scale(view);
+    this.near = near;
+    this.far = far;
+    kx = (width / 2.0 + 1) / focalLength; // a pixel of margin for the edge pixels
+    ky = (height / 2.0 + 1) / focalLength;
+    nx = 1 / Math.sqrt(1 + kx * kx);
+    ny = 1 / Math.sqrt(1 + ky * ky);
+    return this;
+  }
+
+  /**
+   * @return distance of the sphere center along the view direction, in the far clips
+   */
+  public double depth(Sphere s) {
+    Mat m = view;
+    return -(m.m20 * s.x + m.m21 * s.y + m.m22 * s.z + m.m23) / far;
+  }
+
+  /**
+   * @param s in world coordinates
+   * @return false if the sphere is completely outside
+   */
+  public boolean intersects(Sphere s) {
+    if (s.isEmpty()) return false;
+    Mat m = view;
+    double x = m.m00 * s.x + m.m01 * s.y + m.m02 * s.z + m.m03;
+    double y = m.m10 * s.x + m.m11 * s.y + m.m12 * s.z + m.m13;
+    double z = m.m20 * s.x + m.m21 * s.y + m.m22 * s.z + m.m23;
+    double r = s.r * viewScale;
+    if (z - r > -near || z + r < -far) return false;
+    double zx = kx * z;
+    if ((x + zx) * nx > r || (zx - x) * nx > r) return false;
+    double zy = ky * z;
+    return (y + zy) * ny <= r && (zy - y) * ny <= r;
+  }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk.math;
+
+/**
+ * Affine transformation, a 4x4 matrix with the implicit last row 0, 0, 0, 1.
+ * Mutable, the methods write into this and return it.
+ */
+public class Mat implements Cloneable {
+  public double m00 = 1, m01, m02, m03;
+  public double m10, m11 = 1, m12, m13;
+  public double m20, m21, m22 = 1, m23;
+
+  public Mat identity() {
+    m00 = 1; m01 = 0; m02 = 0; m03 = 0;
+    m10 = 0; m11 = 1; m12 = 0; m13 = 0;
+    m20 = 0; m21 = 0; m22 = 1; m23 = 0;
+    return this;
+  }
+
+  public Mat set(Mat m) {
+    m00 = m.m00; m01 = m.m01; m02 = m.m02; m03 = m.m03;
+    m10 = m.m10; m11 = m.m11; m12 = m.m12; m13 = m.m13;
+    m20 = m.m20; m21 = m.m21; m22 = m.m22; m23 = m.m23;
+    return this;
+  }
+
+  /**
+   * Translation, then rotations yaw ry, pitch rx and roll rz in turns, T * Ry * Rx * Rz.
+   */
+  public Mat set(double tx, double ty, double tz, double rx, double ry, double rz) {
+    double sx = Math.sin(2 * Math.PI * rx);
+    double cx = Math.cos(2 * Math.PI * rx);
+    double sy = Math.sin(2 * Math.PI * ry);
+    double cy = Math.cos(2 * Math.PI * ry);
+    double sz = Math.sin(2 * Math.PI * rz);
+    double cz = Math.cos(2 * Math.PI * rz);
+    double sysx = sy * sx;
+    double cysx = cy * sx;
+    m00 = cy * cz + sysx * sz; m01 = sysx * cz - cy * sz; m02 = sy * cx; m03 = tx;
+    m10 = cx * sz; m11 = cx * cz; m12 = -sx; m13 = ty;
+    m20 = cysx * sz - sy * cz; m21 = sy * sz + cysx * cz; m22 = cy * cx; m23 = tz;
+    return this;
+  }
+
+  /**
+   * this = a * b, a or b can be this.
+   */
+  public Mat mul(Mat a, Mat b) {
+    double r00 = a.m00 * b.m00 + a.m01 * b.m10 + a.m02 * b.m20;
+    double r01 = a.m00 * b.m01 + a.m01 * b.m11 + a.m02 * b.m21;
+    double r02 = a.m00 * b.m02 + a.m01 * b.m12 + a.m02 * b.m22;
+    double r03 = a.m00 * b.m03 + a.m01 * b.m13 + a.m02 * b.m23 + a.m03;
+    double r10 = a.m10 * b.m00 + a.m11 * b.m10 + a.m12 * b.m20;
+    double r11 = a.m10 * b.m01 + a.m11 * b.m11 + a.m12 * b.m21;
+    double r12 = a.m10 * b.m02 + a.m11 * b.m12 + a.m12 * b.m22;
+    double r13 = a.m10 * b.m03 + a.m11 * b.m13 + a.m12 * b.m23 + a.m13;
+    double r20 = a.m20 * b.m00 + a.m21 * b.m10 + a.m22 * b.m20;
+    double r21 = a.m20 * b.m01 + a.m21 * b.m11 + a.m22 * b.m21;
+    double r22 = a.m20 * b.m02 + a.m21 * b.m12 + a.m22 * b.m22;
+    double r23 = a.m20 * b.m03 + a.m21 * b.m13 + a.m22 * b.m23 + a.m23;
+    m00 = r00; m01 = r01; m02 = r02; m03 = r03;
+    m10 = r10; m11 = r11; m12 = r12; m13 = r13;
+    m20 = r20; m21 = r21; m22 = r22; m23 = r23;
+    return this;
+  }
+
+  /**
+   * this = m^-1, m can be this.
+   */
+  public Mat inverse(Mat m) {
+    double c00 = m.m11 * m.m22 - m.m12 * m.m21; // cofactors
+    double c01 = m.m12 * m.m20 - m.m10 * m.m22;
+    double c02 = m.m10 * m.m21 - m.m11 * m.m20;
+    double det = m.m00 * c00 + m.m01 * c01 + m.m02 * c02;
+    if (det == 0) throw new ArithmeticException("singular");
+    double d = 1 / det;
+    double r00 = c00 * d;
+    double r01 = (m.m02 * m.m21 - m.m01 * m.m22) * d;
+    double r02 = (m.m01 * m.m12 - m.m02 * m.m11) * d;
+    double r10 = c01 * d;
+    double r11 = (m.m00 * m.m22 - m.m02 * m.m20) * d;
+    double r12 = (m.m02 * m.m10 - m.m00 * m.m12) * d;
+    double r20 = c02 * d;
+    double r21 = (m.m01 * m.m20 - m.m00 * m.m21) * d;
+    double r22 = (m.m00 * m.m11 - m.m01 * m.m10) * d;
+    double tx = m.m03;
+    double ty = m.m13;
+    double tz = m.m23;
+    m00 = r00; m01 = r01; m02 = r02; m03 = -(r00 * tx + r01 * ty + r02 * tz);
+    m10 = r10; m11 = r11; m12 = r12; m13 = -(r10 * tx + r11 * ty + r12 * tz);
+    m20 = r20; m21 = r21; m22 = r22; m23 = -(r20 * tx + r21 * ty + r22 * tz);
+    return this;
+  }
+
+  /**
+   * Transforms xyz points of the source array into the target, the arrays can be the same.
+   */
+  public void transformPoints(double[] source, double[] target, int length) {
+    for (int i = 0; i < length; i += 3) {
+      double x = source[i];
+      double y = source[i + 1];
+      double z = source[i + 2];
+      target[i] = m00 * x + m01 * y + m02 * z + m03;
+      target[i + 1] = m10 * x + m11 * y + m12 * z + m13;
+      target[i + 2] = m20 * x + m21 * y + m22 * z + m23;
+    }
+  }
+
+  /**
+   * Transforms xyz directions, the translation is not applied.
+   */
+  public void transformVectors(double[] source, double[] target, int length) {
+    for (int i = 0; i < length; i += 3) {
+      double x = source[i];
+      double y = source[i + 1];
+      double z = source[i + 2];
+      target[i] = m00 * x + m01 * y + m02 * z;
+      target[i + 1] = m10 * x + m11 * y + m12 * z;
+      target[i + 2] = m20 * x + m21 * y + m22 * z;
+    }
+  }
+
+  @Override
+  public Mat clone() {
+    try {
+      return (Mat) super.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new Error();
+    }
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk.math;
+
+/**
+ * Bounding sphere, empty if the radius is negative.
+ */
+public class Sphere {
+  public double x, y, z;
+  public double r = -1;
+
+  public boolean isEmpty() {
+    return r < 0;
+  }
+
+  public Sphere empty() {
+    x = 0; y = 0; z = 0; r = -1;
+    return this;
+  }
+
+  /**
+   * Sphere around the center of the bounding box of the xyz points.
+   */
+  public Sphere set(double[] xyz) {
+    if (xyz.length < 3) return empty();
+    double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+    double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+    for (int i = 0; i < xyz.length; i += 3) {
+      minX = Math.min(minX, xyz[i]); maxX = Math.max(maxX, xyz[i]);
+      minY = Math.min(minY, xyz[i + 1]); maxY = Math.max(maxY, xyz[i + 1]);
+      minZ = Math.min(minZ, xyz[i + 2]); maxZ = Math.max(maxZ, xyz[i + 2]);
+    }
+    x = (minX + maxX) / 2; y = (minY + maxY) / 2; z = (minZ + maxZ) / 2;
+    double r2 = 0;
+    for (int i = 0; i < xyz.length; i += 3) {
+      double dx = xyz[i] - x, dy = xyz[i + 1] - y, dz = xyz[i + 2] - z;
+      r2 = Math.max(r2, dx * dx + dy * dy + dz * dz);
+    }
+    r = Math.sqrt(r2);
+    return this;
+  }
+
+  /**
+   * this = m * s, the radius grows with the largest scale of m.
+   */
+  public Sphere set(Mat m, Sphere s) {
+    if (s.isEmpty()) return empty();
+    double sx = s.x, sy = s.y, sz = s.z;
+    x = m.m00 * sx + m.m01 * sy + m.m02 * sz + m.m03;
+    y = m.m10 * sx + m.m11 * sy + m.m12 * sz + m.m13;
+    z = m.m20 * sx + m.m21 * sy + m.m22 * sz + m.m23;
+    r = s.r * scale(m);
+    return this;
+  }
+
+  /**
+   * Largest length of the matrix columns, 1 for rotations.
+   */
+  public static double scale(Mat m) {
+    double c0 = m.m00 * m.m00 + m.m10 * m.m10 + m.m20 * m.m20;
+    double c1 = m.m01 * m.m01 + m.m11 * m.m11 + m.m21 * m.m21;
+    double c2 = m.m02 * m.m02 + m.m12 * m.m12 + m.m22 * m.m22;
+    return Math.sqrt(Math.max(c0, Math.max(c1, c2)));
+  }
+
+  /**
+   * Grows this to enclose s.
+   */
+  public Sphere add(Sphere s) {
+    if (s.isEmpty()) return this;
+    if (isEmpty()) {
+      x = s.x; y = s.y; z = s.z; r = s.r;
+      return this;
+    }
+    double dx = s.x - x, dy = s.y - y, dz = s.z - z;
+    double d = Math.sqrt(dx * dx + dy * dy + dz * dz);
+    if (d + s.r <= r) return this;
+    if (d + r <= s.r) {
+      x = s.x; y = s.y; z = s.z; r = s.r;
+      return this;
+    }
+    double radius = (d + r + s.r) / 2;
+    double k = (radius - r) / d;
+    x += dx * k; y += dy * k; z += dz * k;
+    r = radius;
+    return this;
+  }
+
+}
@@ -66,6 +66,10 @@ public class Col implements Cloneable {
   }
 
   public int argb() {
+    return argb(a, r, g, b);
+  }
+
+  public static int argb(double a, double r, double g, double b) {
     return Math.min(0xFF, (int) (a * 0xFF)) << 24 | Math.min(0xFF, (int) (r * 0xFF)) << 16 |
         Math.min(0xFF, (int) (g * 0xFF)) << 8 | Math.min(0xFF, (int) (b * 0xFF));
   }
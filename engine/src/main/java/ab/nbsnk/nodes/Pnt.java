@@ -17,8 +17,6 @@
 
 package ab.nbsnk.nodes;
 
-import Jama.Matrix;
-
 public class Pnt implements Cloneable {
   public double x;
   public double y;
@@ -75,13 +73,4 @@ public class Pnt implements Cloneable {
       a.z * v[0] + b.z * v[1] + c.z * v[2]);
   }
 
-  public Matrix toMatrix(double t) {
-    //return new Matrix(new double[]{x, y, z, t}, 4);
-    return new Matrix(new double[][]{{x}, {y}, {z}, {t}}, 4, 1);
-  }
-
-  public static Pnt fromMatrix(Matrix matrix) {
-    return new Pnt(matrix.get(0, 0), matrix.get(1, 0), matrix.get(2, 0));
-  }
-
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DynamicResolutionTest {
+
+  @Test
+  void controller() {
+    DynamicResolution dynamicResolution = new DynamicResolution();
+    dynamicResolution.frame(100_000_000);
+    assertEquals(1, dynamicResolution.scale); // disabled
+    dynamicResolution.targetNanos = 10_000_000;
+    for (int i = 0; i < 20; i++) dynamicResolution.frame(40_000_000);
+    assertEquals(0.5, dynamicResolution.scale);
+    for (int i = 0; i < 20; i++) dynamicResolution.frame(5_000_000);
+    assertEquals(1, dynamicResolution.scale);
+    dynamicResolution.scale = 0.75;
+    dynamicResolution.averageNanos = 0;
+    for (int i = 0; i < 20; i++) dynamicResolution.frame(10_000_000);
+    assertEquals(0.75, dynamicResolution.scale);
+    assertEquals(480, dynamicResolution.size(640));
+  }
+
+  @Test
+  void upscale() {
+    int[] source = {0xFF000000, 0xFF0000FF, 0xFF000000, 0xFF0000FF};
+    int[] target = new int[4 * 2];
+    DynamicResolution.upscale(source, 2, 2, target, 4, 2);
+    assertArrayEquals(new int[]{0xFF000000, 0xFF000040, 0xFF0000BF, 0xFF0000FF,
+        0xFF000000, 0xFF000040, 0xFF0000BF, 0xFF0000FF}, target);
+    int[] same = new int[4];
+    DynamicResolution.upscale(source, 2, 2, same, 2, 2);
+    assertArrayEquals(source, same);
+  }
+
+  @Test
+  void engineScalesDown() throws IOException {
+    BufferedImage image = new BufferedImage(320, 200, BufferedImage.TYPE_INT_RGB);
+    EngineNbs engine = new EngineNbs().setFrameTime(0.001, 0.5, 1).open(image); // too fast to make it
+    EngineNbsTest.scene(engine, EngineNbsTest.spot());
+    engine.update();
+    int[] full = image.getRGB(0, 0, 320, 200, null, 0, 320);
+    for (int i = 0; i < 10; i++) engine.update();
+    assertEquals(0.5, engine.scale());
+    assertEquals(0.5, engine.stats().scale);
+    int[] scaled = image.getRGB(0, 0, 320, 200, null, 0, 320);
+    int differences = 0;
+    for (int i = 0; i < full.length; i++) {
+      for (int shift = 0; shift < 24; shift += 8) {
+        if (Math.abs((full[i] >> shift & 0xFF) - (scaled[i] >> shift & 0xFF)) > 64) {
+          differences++;
+          break;
+        }
+      }
+    }
+    assertTrue(differences < full.length / 20, differences + " pixels");
+    engine.setFrameTime(0, 1, 1);
+    assertEquals(1, engine.scale());
+    engine.close();
+  }
+
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk;
+
+import ab.nbsnk.math.Mat;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EngineNbsTest {
+
+  static Obj spot() throws IOException {
+    Obj obj = Obj.load(EngineNbsTest.class.getResourceAsStream("spot_triangulated.obj"));
+    obj.image = ImageIO.read(EngineNbsTest.class.getResourceAsStream("spot_texture.png"));
+    Obj.fixNormal(obj);
+    return obj;
+  }
+
+  static void scene(Engine3d engine, Obj obj) {
+    engine.setAmbient(0xFF222222);
+    engine.light().translation(-5, 3, 5);
+    engine.light().setColor(0xFF7F3F1F).translation(5, -3, 2);
+    Engine3d.Group group = engine.group();
+    group.translation(0, 0, -3).rotation(0.1, 0.05, 0);
+    engine.shape(obj).setSpecular(-1, 100).translation(-0.6, 0, 0).rotation(0.3, 0, 0).connect(group);
+    engine.shape(obj).translation(0.6, 0.2, -0.5).rotation(0.6, 0, 0.1).connect(group);
+    engine.shape(obj).setColor(0x7FFFFFFF).translation(0, -0.2, 0.8).connect(group);
+  }
+
+  static int[] render(int parallelism, int width, int height, Consumer<EngineNbs> setup) throws IOException {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    EngineNbs engine = new EngineNbs().setParallelism(parallelism);
+    engine.open(image);
+    scene(engine, spot());
+    setup.accept(engine);
+    engine.update();
+    engine.close();
+    return image.getRGB(0, 0, width, height, null, 0, width);
+  }
+
+  static long allocatedBytes(int width, int height, int sysex) throws IOException {
+    com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    EngineNbs engine = new EngineNbs().open(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+    scene(engine, spot());
+    engine.sysex(sysex);
+    for (int i = 0; i < 3; i++) engine.update(); // warm up
+    long bytes = threadMXBean.getThreadAllocatedBytes(threadId);
+    engine.update();
+    bytes = threadMXBean.getThreadAllocatedBytes(threadId) - bytes;
+    engine.close();
+    return bytes;
+  }
+
+  @Test
+  void pixelShadingDoesNotAllocate() throws IOException {
+    for (int sysex : new int[]{'4', '6', '7'}) {
+      long small = allocatedBytes(160, 100, sysex);
+      long large = allocatedBytes(640, 400, sysex);
+      // 240k more pixels, one object per pixel would be megabytes
+      assertTrue(large - small < 100_000, (char) sysex + ": " + small + " -> " + large);
+    }
+  }
+
+  @Test
+  void tileParallelIsBitIdentical() throws IOException {
+    for (int sysex : new int[]{'4', '5', '6', '7'}) {
+      int[] expected = render(1, 333, 201, engine -> engine.sysex(sysex));
+      int[] actual = render(4, 333, 201, engine -> engine.sysex(sysex));
+      assertTrue(Arrays.stream(expected).distinct().count() > 100);
+      assertArrayEquals(expected, actual, "sysex " + (char) sysex);
+    }
+  }
+
+  static int[] rangedLights(int parallelism, int sysex, boolean ranged) throws IOException {
+    BufferedImage image = new BufferedImage(400, 200, BufferedImage.TYPE_INT_RGB);
+    Engine3d engine = new EngineNbs().setParallelism(parallelism).open(image);
+    Obj obj = spot();
+    engine.setAmbient(0xFF222222);
+    engine.sysex(sysex);
+    engine.light().translation(0, 3, 5);
+    for (int side = -1; side <= 1; side += 2) { // each light reaches its shape only
+      engine.shape(obj).translation(side * 1.5, 0, -5).rotation(0.3, 0, 0);
+      if (ranged) engine.light().setColor(side < 0 ? 0xFF00FF00 : 0xFF0000FF).setRange(1.5).translation(side * 1.5, 0.5, -3.8);
+    }
+    engine.update();
+    engine.close();
+    return image.getRGB(0, 0, 400, 200, null, 0, 400);
+  }
+
+  @Test
+  void rangedLights() throws IOException {
+    for (int sysex : new int[]{'5', '6', '7'}) {
+      int[] expected = rangedLights(1, sysex, true);
+      assertFalse(Arrays.equals(rangedLights(1, sysex, false), expected));
+      assertArrayEquals(expected, rangedLights(4, sysex, true), "sysex " + (char) sysex);
+    }
+  }
+
+  @Test
+  void deferredMatchesForward() throws IOException {
+    for (int parallelism : new int[]{1, 4}) {
+      for (Shader.DepthFormat depthFormat : Shader.DepthFormat.values()) {
+        int[] expected = render(parallelism, 333, 201, engine -> engine.setDepthFormat(depthFormat).sysex('7'));
+        int[] actual = render(parallelism, 333, 201,
+            engine -> engine.setDepthFormat(depthFormat).setDeferred(true).sysex('7'));
+        int differences = 0; // the position rebuilt from the depth, the float normals and uv
+        for (int i = 0; i < expected.length; i++) if (expected[i] != actual[i]) differences++;
+        assertTrue(differences < expected.length / 1000, parallelism + " " + depthFormat + " " + differences);
+      }
+    }
+  }
+
+  @Test
+  void depthFormatsMatchDouble() throws IOException {
+    for (int sysex : new int[]{'4', '7'}) {
+      for (int parallelism : new int[]{1, 4}) {
+        int[] expected = render(parallelism, 640, 400, engine -> engine.sysex(sysex));
+        for (Shader.DepthFormat depthFormat : new Shader.DepthFormat[]{Shader.DepthFormat.FLOAT, Shader.DepthFormat.INT24}) {
+          int[] actual = render(parallelism, 640, 400, engine -> engine.setDepthFormat(depthFormat).sysex(sysex));
+          int differences = 0;
+          for (int i = 0; i < expected.length; i++) if (expected[i] != actual[i]) differences++;
+          assertTrue(differences < expected.length / 1000, depthFormat + " " + differences);
+        }
+      }
+    }
+  }
+
+  @Test
+  void shadingLod() throws IOException {
+    int[] illuminations = new int[Shader.Illumination.values().length];
+    int[] lambert = render(1, 320, 200, engine -> engine.sysex('5'));
+    assertArrayEquals(lambert, render(1, 320, 200, engine -> {
+      engine.setShadingLod(Double.MAX_VALUE, Double.MAX_VALUE, 0, 0);
+      engine.update();
+      System.arraycopy(engine.stats().illuminations, 0, illuminations, 0, illuminations.length);
+    }));
+    assertEquals(3, illuminations[Shader.Illumination.LAMBERT.ordinal()]);
+    int[] phong = render(1, 320, 200, engine -> {});
+    assertArrayEquals(phong, render(1, 320, 200, engine -> engine.setShadingLod(0, 0, 0, 0)));
+    assertArrayEquals(lambert, render(1, 320, 200, engine -> engine.setShadingLod(0, 0, 0, 0).sysex('5')));
+    int[] mixed = render(1, 320, 200, engine -> {
+      engine.setShadingLod(Double.MAX_VALUE, 0, 0, 0); // gouraud
+      engine.update();
+      System.arraycopy(engine.stats().illuminations, 0, illuminations, 0, illuminations.length);
+    });
+    assertArrayEquals(new int[]{0, 0, 3, 0, 0}, illuminations);
+    assertArrayEquals(render(1, 320, 200, engine -> engine.sysex('6')), mixed);
+  }
+
+  @Test
+  void renderQueueOrder() throws IOException {
+    EngineNbs engine = new EngineNbs().open(new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB));
+    scene(engine, spot());
+    engine.update();
+    engine.close();
+    Stats stats = engine.stats();
+    assertEquals(3, stats.shapes);
+    assertEquals(3, stats.sortKeyCount);
+    long[] sortKeys = Arrays.copyOf(stats.sortKeys, stats.sortKeyCount);
+    assertArrayEquals(Arrays.stream(sortKeys).sorted().toArray(), sortKeys);
+    assertTrue(stats.sortKeys[1] < RenderQueue.TRANSPARENT);
+    assertTrue(stats.sortKeys[2] >= RenderQueue.TRANSPARENT);
+    assertTrue(stats.pixelTests > stats.pixelRejects);
+    assertTrue(RenderQueue.opaqueKey(0.1, 5) < RenderQueue.opaqueKey(0.5, 1));
+    assertTrue(RenderQueue.transparentKey(0.5) < RenderQueue.transparentKey(0.1));
+  }
+
+  @Test
+  void materialIds() throws IOException {
+    Obj obj = spot();
+    Engine3d engine = new EngineNbs().open(new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB));
+    Engine3d.Shape[] tinted = new Engine3d.Shape[10];
+    for (int i = 0; i < tinted.length; i++) { // each with a texture of its own
+      tinted[i] = engine.shape(obj).selfIllumination(0xFF808080 + i);
+      tinted[i].translation(0, 0, -3);
+    }
+    engine.update();
+    Stats stats = ((EngineNbs) engine).stats();
+    long[] sortKeys = stats.sortKeys;
+    for (Engine3d.Shape shape : tinted) shape.setVisible(false);
+    scene(engine, obj);
+    engine.update();
+    engine.close();
+    assertEquals(3, stats.shapes);
+    assertEquals(3, stats.sortKeyCount);
+    assertSame(sortKeys, stats.sortKeys); // fewer shapes, the same array
+    for (int i = 0; i < 2; i++) assertEquals(1, stats.sortKeys[i] & (1 << RenderQueue.MATERIAL_BITS) - 1);
+  }
+
+  static int[] moved(Obj obj, boolean warmUp) {
+    BufferedImage image = new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB);
+    Engine3d engine = new EngineNbs().open(image);
+    scene(engine, obj);
+    Engine3d.Group group = engine.group();
+    Engine3d.Group inner = engine.group();
+    inner.connect(group);
+    Engine3d.Node shape = engine.shape(obj).translation(0, 0.5, 0);
+    shape.connect(group);
+    Engine3d.Node hidden = engine.shape(obj).translation(0, -0.5, -2);
+    if (warmUp) engine.update();
+    group.translation(0.3, 0, -3).rotation(0.2, 0, 0);
+    if (warmUp) engine.update();
+    shape.connect(inner);
+    inner.rotation(0, 0.1, 0);
+    hidden.setVisible(false);
+    engine.camera().translation(0, 0, 1);
+    engine.update();
+    engine.close();
+    return image.getRGB(0, 0, 200, 150, null, 0, 200);
+  }
+
+  @Test
+  void cachedTransformsFollowChanges() throws IOException {
+    Obj obj = spot();
+    assertArrayEquals(moved(obj, false), moved(obj, true));
+  }
+
+  static int[][] occlusion(int parallelism, boolean occlusion, int[] occluded) throws IOException {
+    Obj wall = Obj.load(("v -2 -2 0\nv 2 -2 0\nv 2 2 0\nv -2 2 0\nvt 0 0\nvt 1 0\nvt 1 1\nvt 0 1\nvn 0 0 1\n"
+        + "f 1/1/1 2/2/1 3/3/1 4/4/1\n").getBytes());
+    BufferedImage image = new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB);
+    EngineNbs engine = new EngineNbs().setParallelism(parallelism).setOcclusion(occlusion).open(image);
+    scene(engine, spot());
+    Engine3d.Shape shape = engine.shape(wall);
+    shape.translation(0, 0, -1.2); // fills the screen
+    int[][] frames = new int[4][];
+    for (int i = 0; i < frames.length; i++) {
+      if (i == 1) shape.translation(3, 0, -1.2); // the hidden shapes show up
+      if (i == 2) shape.translation(0, 0, -1.2);
+      engine.update();
+      occluded[i] = engine.stats().occludedShapes;
+      frames[i] = image.getRGB(0, 0, 200, 150, null, 0, 200);
+    }
+    engine.close();
+    return frames;
+  }
+
+  @Test
+  void occlusionCulling() throws IOException {
+    for (int parallelism : new int[]{1, 4}) {
+      int[] occluded = new int[4];
+      int[][] expected = occlusion(parallelism, false, occluded);
+      assertArrayEquals(new int[4], occluded);
+      int[][] actual = occlusion(parallelism, true, occluded);
+      for (int i = 0; i < expected.length; i++) assertArrayEquals(expected[i], actual[i], "frame " + i);
+      // the front shape reaches the wall, the binned shapes are tested against the last frame
+      int[] hidden = parallelism == 1 ? new int[]{2, 0, 2, 2} : new int[]{0, 0, 0, 2};
+      assertArrayEquals(hidden, occluded, "parallelism " + parallelism);
+    }
+  }
+
+  static int[] camera(Obj obj, BufferedImage image, double x) {
+    Engine3d engine = new EngineNbs().open(image);
+    scene(engine, obj);
+    engine.camera().translation(x, 0, 0);
+    engine.update();
+    engine.close();
+    return image.getRGB(0, 0, 200, 150, null, 0, 200);
+  }
+
+  @Test
+  void directDoubleBuffering() throws IOException {
+    Obj obj = spot();
+    int[] expected = camera(obj, new BufferedImage(200, 150, BufferedImage.TYPE_3BYTE_BGR), 0); // copied
+    int[] expectedMoved = camera(obj, new BufferedImage(200, 150, BufferedImage.TYPE_3BYTE_BGR), 0.2);
+    BufferedImage front = new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB);
+    BufferedImage back = new BufferedImage(200, 150, BufferedImage.TYPE_INT_RGB);
+    assertNotNull(EngineNbs.dataBuffer(front));
+    assertNotNull(EngineNbs.dataBuffer(new BufferedImage(200, 150, BufferedImage.TYPE_INT_ARGB)));
+    assertNull(EngineNbs.dataBuffer(front.getSubimage(10, 10, 100, 100)));
+    EngineNbs engine = new EngineNbs().open(front, back);
+    scene(engine, obj);
+    engine.update();
+    assertSame(front, engine.image());
+    assertArrayEquals(expected, front.getRGB(0, 0, 200, 150, null, 0, 200));
+    Engine3d.Node camera = engine.camera();
+    camera.translation(0.2, 0, 0);
+    engine.update();
+    assertSame(back, engine.image());
+    assertArrayEquals(expectedMoved, back.getRGB(0, 0, 200, 150, null, 0, 200));
+    assertArrayEquals(expected, front.getRGB(0, 0, 200, 150, null, 0, 200), "the front image is kept");
+    engine.update(); // over the previous frame
+    assertSame(front, engine.image());
+    assertArrayEquals(expectedMoved, front.getRGB(0, 0, 200, 150, null, 0, 200));
+    engine.close();
+  }
+
+  @Test
+  void sharedMeshes() throws IOException {
+    Obj obj = spot();
+    int[] expected = render(1, 320, 200, engine -> {});
+    BufferedImage image = new BufferedImage(320, 200, BufferedImage.TYPE_INT_RGB);
+    EngineNbs engine = new EngineNbs().open(image);
+    scene(engine, obj);
+    Mesh mesh = engine.mesh(obj);
+    assertSame(mesh, engine.mesh(obj));
+    assertNotSame(obj.vertex, mesh.obj.vertex);
+    Arrays.fill(obj.vertex, 0); // frozen by the first shape
+    engine.update();
+    assertArrayEquals(expected, image.getRGB(0, 0, 320, 200, null, 0, 320));
+    engine.close();
+  }
+
+  static int[] instances(Obj obj, int parallelism, boolean instanced) {
+    return instances(obj, parallelism, instanced, false);
+  }
+
+  /**
+   * With the shading lod the nearest instance is lit per pixel, the other ones per face.
+   */
+  static int[] instances(Obj obj, int parallelism, boolean instanced, boolean shadingLod) {
+    BufferedImage image = new BufferedImage(320, 200, BufferedImage.TYPE_INT_RGB);
+    Engine3d engine = new EngineNbs().setParallelism(parallelism).open(image);
+    if (shadingLod) ((EngineNbs) engine).setShadingLod(90000, 90000, 0, 0);
+    engine.light().translation(-5, 3, 5);
+    double[][] transforms = {{-0.8, 0, -3, 0.3, 0, 0}, {0.8, 0.2, -3.5, 0.6, 0.1, 0.1}, {0, -0.3, -2.5, 0, 0, 0},
+        {20, 0, -3, 0, 0, 0}}; // the last one is out of the view
+    int[] colors = {-1, 0xFF7F7FFF, 0xFFFF7F7F, -1};
+    if (instanced) {
+      Engine3d.Instances instances = engine.instances(obj, 8);
+      for (int i = 0; i < transforms.length; i++) {
+        System.arraycopy(transforms[i], 0, instances.transforms(), i * Engine3d.Instances.STRIDE, 6);
+        instances.colors()[i] = colors[i];
+      }
+      instances.setCount(transforms.length);
+    } else {
+      for (int i = 0; i < transforms.length; i++) {
+        double[] t = transforms[i];
+        engine.shape(obj).setColor(colors[i]).translation(t[0], t[1], t[2]).rotation(t[3], t[4], t[5]);
+      }
+    }
+    engine.update();
+    if (instanced) assertEquals(3, ((EngineNbs) engine).stats().instances);
+    if (shadingLod) assertArrayEquals(new int[]{0, 2, 0, 1, 0}, ((EngineNbs) engine).stats().illuminations);
+    engine.close();
+    return image.getRGB(0, 0, 320, 200, null, 0, 320);
+  }
+
+  /**
+   * More instances than the binned vertex stages, the tile bins are flushed in between.
+   */
+  static int[] manyInstances(Obj obj, int parallelism) {
+    BufferedImage image = new BufferedImage(320, 200, BufferedImage.TYPE_INT_RGB);
+    Engine3d engine = new EngineNbs().setParallelism(parallelism).open(image);
+    engine.light().translation(-5, 3, 5);
+    Engine3d.Instances instances = engine.instances(obj, 48);
+    double[] transforms = instances.transforms();
+    for (int i = 0; i < 48; i++) {
+      int j = i * Engine3d.Instances.STRIDE;
+      transforms[j] = i % 8 - 3.5;
+      transforms[j + 1] = i / 8 % 3 - 1;
+      transforms[j + 2] = -8 - i / 24 * 2;
+      transforms[j + 3] = i * 0.1;
+      instances.colors()[i] = 0xFF000000 | i * 0x050301;
+    }
+    instances.setCount(48);
+    engine.update();
+    assertEquals(48, ((EngineNbs) engine).stats().instances);
+    engine.close();
+    return image.getRGB(0, 0, 320, 200, null, 0, 320);
+  }
+
+  /**
+   * The scene scaled around the camera, the same picture if the instance vectors are not scaled.
+   */
+  static int[] scaledInstance(Obj obj, double scale) {
+    BufferedImage image = new BufferedImage(320, 200, BufferedImage.TYPE_INT_RGB);
+    Engine3d engine = new EngineNbs().open(image);
+    engine.light().translation(-5 * scale, 3 * scale, 5 * scale);
+    Engine3d.Instances instances = engine.instances(obj, 1);
+    instances.setSpecular(-1, 50).setBumpMap(obj.image);
+    double[] transforms = instances.transforms();
+    transforms[0] = 0.2 * scale;
+    transforms[2] = -2.5 * scale;
+    transforms[3] = 0.3;
+    transforms[6] = scale;
+    instances.setCount(1);
+    engine.update();
+    engine.close();
+    return image.getRGB(0, 0, 320, 200, null, 0, 320);
+  }
+
+  @Test
+  void instances() throws IOException {
+    Obj obj = spot();
+    for (int parallelism : new int[]{1, 4}) {
+      assertArrayEquals(instances(obj, parallelism, false), instances(obj, parallelism, true));
+      assertArrayEquals(instances(obj, parallelism, false, true), instances(obj, parallelism, true, true));
+    }
+    assertArrayEquals(manyInstances(obj, 1), manyInstances(obj, 4));
+    BufferedImage image = new BufferedImage(320, 200, BufferedImage.TYPE_INT_RGB);
+    EngineNbs engine = new EngineNbs().open(image);
+    Engine3d.Instances instances = engine.instances(obj, 2);
+    double[] transforms = instances.transforms();
+    transforms[2] = -3;
+    transforms[Engine3d.Instances.STRIDE] = 3; // outside, unless scaled up
+    transforms[Engine3d.Instances.STRIDE + 2] = -3;
+    instances.setCount(2);
+    engine.update();
+    assertEquals(1, engine.stats().instances);
+    transforms[Engine3d.Instances.STRIDE + 6] = 4;
+    instances.setCount(2);
+    engine.update();
+    assertEquals(2, engine.stats().instances);
+    assertThrows(IllegalArgumentException.class, () -> instances.setCount(3));
+    instances.colors()[1] = 0x7FFFFFFF;
+    assertThrows(IllegalArgumentException.class, () -> instances.setCount(2));
+    engine.close();
+    int[] expected = scaledInstance(obj, 1);
+    int[] scaled = scaledInstance(obj, 2);
+    int differences = 0;
+    for (int i = 0; i < expected.length; i++) {
+      for (int shift = 0; shift < 24; shift += 8) {
+        if (Math.abs((expected[i] >> shift & 0xFF) - (scaled[i] >> shift & 0xFF)) > 2) {
+          differences++;
+          break;
+        }
+      }
+    }
+    assertTrue(differences < 20, differences + " pixels");
+  }
+
+  static int[] bulk(Obj obj, int mode) {
+    BufferedImage image = new BufferedImage(320, 200, BufferedImage.TYPE_INT_RGB);
+    Engine3d engine = new EngineNbs().open(image);
+    engine.light().translation(-5, 3, 5);
+    Engine3d.Node[] nodes = new Engine3d.Node[3];
+    double[] transforms = new double[nodes.length * Engine3d.TRANSFORM_STRIDE];
+    double[] matrices = new double[nodes.length * Engine3d.MATRIX_STRIDE];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = engine.shape(obj).translation(5, 5, 5); // replaced
+      double[] t = {i * 0.8 - 0.8, i * 0.1, -3 - i * 0.3, i * 0.2 + 0.1, i * 0.05, -i * 0.03};
+      System.arraycopy(t, 0, transforms, i * Engine3d.TRANSFORM_STRIDE, t.length);
+      Mat m = new Mat().set(t[0], t[1], t[2], t[4], -t[3], -t[5]);
+      System.arraycopy(new double[]{m.m00, m.m01, m.m02, m.m03, m.m10, m.m11, m.m12, m.m13,
+          m.m20, m.m21, m.m22, m.m23}, 0, matrices, i * Engine3d.MATRIX_STRIDE, Engine3d.MATRIX_STRIDE);
+      if (mode == 0) nodes[i].translation(t[0], t[1], t[2]).rotation(t[3], t[4], t[5]);
+    }
+    if (mode == 1) engine.transforms(nodes, transforms);
+    if (mode == 2) engine.transforms(nodes, DoubleBuffer.wrap(transforms));
+    if (mode == 3) engine.matrices(nodes, matrices);
+    engine.update();
+    engine.close();
+    return image.getRGB(0, 0, 320, 200, null, 0, 320);
+  }
+
+  @Test
+  void bulkTransforms() throws IOException {
+    Obj obj = spot();
+    int[] expected = bulk(obj, 0);
+    for (int mode = 1; mode < 4; mode++) assertArrayEquals(expected, bulk(obj, mode), "mode " + mode);
+    EngineNbs engine = new EngineNbs();
+    Engine3d.Node[] nodes = {engine.shape(obj)};
+    assertThrows(IllegalArgumentException.class, () -> engine.matrices(nodes, new double[11]));
+  }
+
+  static FrameStats frameStats(int parallelism, boolean deferred) throws IOException {
+    EngineNbs engine = new EngineNbs().setParallelism(parallelism).setDeferred(deferred);
+    engine.open(new BufferedImage(320, 200, BufferedImage.TYPE_INT_RGB));
+    scene(engine, spot());
+    Engine3d.Shape outside = engine.shape(spot());
+    outside.translation(100, 0, -3);
+    engine.sysex('7');
+    engine.update();
+    engine.update();
+    FrameStats stats = new FrameStats().add(engine.stats());
+    stats.frames = engine.stats().frames;
+    engine.close();
+    return stats;
+  }
+
+  @Test
+  void frameStats() throws IOException {
+    for (boolean deferred : new boolean[]{false, true}) {
+      FrameStats expected = frameStats(1, deferred);
+      assertEquals(2, expected.frames);
+      assertEquals(1, expected.culledShapes);
+      assertEquals(3, expected.shapes + expected.occludedShapes);
+      assertTrue(expected.backFaces > 0 && expected.backFaces < expected.faces, expected.toString());
+      assertTrue(expected.pixelsShaded > 0 && expected.pixelsShaded <= expected.pixelTests, expected.toString());
+      assertTrue(expected.overdraw() > 0);
+      assertEquals(320 * 200, expected.pixels);
+      assertTrue(expected.frameNanos >= expected.sceneNanos + expected.vertexNanos + expected.rasterNanos
+          + expected.shadeNanos + expected.blitNanos, expected.toString());
+      FrameStats actual = frameStats(4, deferred);
+      assertEquals(expected.faces, actual.faces);
+      assertEquals(expected.backFaces, actual.backFaces);
+      assertEquals(expected.clippedFaces, actual.clippedFaces);
+      assertEquals(expected.pixelTests, actual.pixelTests);
+      assertEquals(expected.pixelsShaded, actual.pixelsShaded, "deferred " + deferred);
+    }
+  }
+
+  static int[] reflection(boolean skybox, boolean hidden) throws IOException {
+    BufferedImage image = new BufferedImage(320, 200, BufferedImage.TYPE_INT_RGB);
+    Engine3d engine = new EngineNbs().open(image);
+    Obj obj = spot();
+    Engine3d.Group sky = engine.group();
+    sky.rotation(0.25, 0.1, 0);
+    engine.shape(obj).setReflectionMap(obj.image, 0.5, skybox ? sky : null).translation(0, 0, -3);
+    engine.update();
+    if (hidden) sky.setVisible(false);
+    sky.rotation(0.5, 0, 0); // not applied to a hidden node
+    engine.update();
+    engine.close();
+    return image.getRGB(0, 0, 320, 200, null, 0, 320);
+  }
+
+  @Test
+  void hiddenSkybox() throws IOException {
+    int[] expected = reflection(false, false);
+    assertArrayEquals(expected, reflection(true, true));
+    assertFalse(Arrays.equals(expected, reflection(true, false)));
+  }
+
+}
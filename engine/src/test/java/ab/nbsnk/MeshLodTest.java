@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MeshLodTest {
+
+  @Test
+  void chain() throws IOException {
+    Obj obj = EngineNbsTest.spot();
+    Obj[] chain = MeshLod.chain(obj, 5);
+    assertEquals(5, chain.length);
+    assertSame(obj, chain[0]);
+    for (int i = 1; i < chain.length; i++) {
+      Obj lod = chain[i];
+      int faces = lod.face.length / 9;
+      assertTrue(faces <= chain[i - 1].face.length / 9 / 2 + 1, i + ": " + faces);
+      assertEquals(obj.normal.length, lod.normal.length);
+      assertSame(obj.image, lod.image);
+      Set<Integer> used = new HashSet<>();
+      for (int f = 0; f < lod.face.length; f += 3) {
+        assertTrue(lod.face[f] < lod.vertex.length / 3);
+        assertTrue(lod.face[f + 1] < lod.normal.length / 3);
+        assertTrue(lod.face[f + 2] < lod.texture.length / 2);
+        used.add(lod.face[f]);
+      }
+      assertEquals(lod.vertex.length / 3, used.size());
+      Obj.verify(lod);
+    }
+  }
+
+  @Test
+  void seams() throws IOException {
+    Obj obj = EngineNbsTest.spot();
+    Obj lod = MeshLod.chain(obj, 4)[3];
+    // the uv seams keep every texture coordinate that is used on both sides of them
+    Set<Integer> seam = new HashSet<>();
+    int[] texture = new int[obj.vertex.length / 3];
+    for (int f = 0; f < obj.face.length; f += 3) {
+      int v = obj.face[f];
+      if (texture[v] == 0) texture[v] = obj.face[f + 2] + 1;
+      else if (texture[v] != obj.face[f + 2] + 1) seam.add(v);
+    }
+    assertFalse(seam.isEmpty());
+    Set<String> positions = new HashSet<>();
+    for (int i = 0; i < lod.vertex.length; i += 3) {
+      positions.add(lod.vertex[i] + " " + lod.vertex[i + 1] + " " + lod.vertex[i + 2]);
+    }
+    int kept = 0;
+    for (int v : seam) {
+      if (positions.contains(obj.vertex[v * 3] + " " + obj.vertex[v * 3 + 1] + " " + obj.vertex[v * 3 + 2])) kept++;
+    }
+    assertTrue(kept > seam.size() / 2, kept + " of " + seam.size());
+  }
+
+  @Test
+  void level() {
+    Obj[] chain = new Obj[3];
+    for (int i = 0; i < chain.length; i++) {
+      chain[i] = new Obj();
+      chain[i].face = new int[9 * (1000 >> i)];
+    }
+    assertEquals(0, MeshLod.level(chain, Double.POSITIVE_INFINITY));
+    assertEquals(0, MeshLod.level(chain, 2001 * MeshLod.PIXELS_PER_FACE / 4));
+    assertEquals(1, MeshLod.level(chain, 500 * MeshLod.PIXELS_PER_FACE));
+    assertEquals(2, MeshLod.level(chain, 0));
+  }
+
+  @Test
+  void engineLevels() throws IOException {
+    Obj[] chain = MeshLod.chain(EngineNbsTest.spot(), 4);
+    BufferedImage image = new BufferedImage(320, 200, BufferedImage.TYPE_INT_RGB);
+    EngineNbs engine = new EngineNbs().open(image);
+    Engine3d.Shape shape = engine.shape(chain);
+    shape.translation(0, 0, -3);
+    engine.update();
+    assertEquals(0, engine.stats().lodShapes);
+    int[] near = image.getRGB(0, 0, 320, 200, null, 0, 320);
+    shape.translation(0, 0, -30);
+    engine.update();
+    assertEquals(1, engine.stats().lodShapes);
+    shape.translation(0, 0, -3);
+    engine.update();
+    assertArrayEquals(near, image.getRGB(0, 0, 320, 200, null, 0, 320));
+    assertThrows(IllegalArgumentException.class, () -> engine.shape(new Obj[0]));
+  }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MipmapTest {
+
+  @Test
+  void levels() {
+    int[] raster = new int[5 * 2];
+    raster[0] = 0xFF000000;
+    raster[1] = 0xFFFFFFFF;
+    raster[5] = 0xFF0000FF;
+    raster[6] = 0xFF00FF00;
+    Mipmap mipmap = new Mipmap(raster, 5, 2);
+    assertEquals(3, mipmap.levels());
+    assertArrayEquals(new int[]{5, 2, 1}, mipmap.width);
+    assertArrayEquals(new int[]{2, 1, 1}, mipmap.height);
+    assertEquals(0xFF408080, mipmap.raster[1][0]);
+    assertEquals(0, mipmap.level(1.0 / 10, 1)); // a texel per pixel
+    assertEquals(0, mipmap.level(3.9 / 10, 1));
+    assertEquals(1, mipmap.level(4.0 / 10, 1));
+    assertEquals(2, mipmap.level(1000, 1));
+    assertEquals(0, mipmap.level(0, 0));
+  }
+
+}
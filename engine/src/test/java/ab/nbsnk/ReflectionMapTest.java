@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReflectionMapTest {
+
+  @Test
+  void matchesEquirectangular() {
+    int width = 128;
+    int height = 64;
+    int[] raster = new int[width * height];
+    for (int i = 0; i < raster.length; i++) raster[i] = i;
+    ReflectionMap map = new ReflectionMap(raster, width, height);
+    Random random = new Random(1);
+    for (int i = 0; i < 10000; i++) {
+      double x = random.nextGaussian();
+      double y = random.nextGaussian();
+      double z = random.nextGaussian();
+      double length = Math.sqrt(x * x + y * y + z * z);
+      int expected = ReflectionMap.texel(x / length, y / length, z / length, width, height);
+      int actual = map.get(x * 3, y * 3, z * 3);
+      int dy = Math.abs(actual / width - expected / width);
+      int dx = Math.abs(actual % width - expected % width);
+      dx = Math.min(dx, width - dx);
+      assertTrue(dy <= 1, "y " + dy);
+      if (Math.abs(y / length) < 0.95) assertTrue(dx <= 2, "x " + dx); // the columns converge at the poles
+    }
+  }
+
+}
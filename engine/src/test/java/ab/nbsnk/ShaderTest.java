@@ -17,8 +17,8 @@
 
 package ab.nbsnk;
 
-import Jama.Matrix;
 import ab.jnc3.Screen;
+import ab.nbsnk.math.Mat;
 import ab.nbsnk.nodes.Col;
 import ab.nbsnk.nodes.Pnt;
 import org.junit.jupiter.api.Disabled;
@@ -33,6 +33,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.Instant;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -155,12 +156,13 @@ class ShaderTest {
       shader.textureHeight = textureHeight;
       shader.addLight(new Pnt(-5000, 3000, 5000), new Col(-1));
       double year = Instant.now().toEpochMilli() / 60_000.0;
-      Matrix matrix = EngineNbs.IDENTITY;
+      Mat matrix = new Mat();
       matrix = EngineNbs.multiply(matrix, 0, 0, -4, 0, 0, 0);
       matrix = EngineNbs.multiply(matrix, 0, 0, 0, 0, year, 0);
       matrix = EngineNbs.multiply(matrix, 0, 0, 0, -23.44 / 360, 0, 0);
       matrix = EngineNbs.multiply(matrix, 0, 0, 0, 0, year * 9, 0);
       shader.add(obj, matrix);
+      shader.finish();
       //int[] buffer = shader.run(obj, year);
       screen.image.getRaster().setDataElements(0, 0, width, height, shader.imageRaster);
       graphics.drawString(String.format("fps: %.0f", fpsMeter.getFps()), 20, 20);
@@ -188,6 +190,142 @@ class ShaderTest {
     }
   }
 
+  @Test
+  void topLeftFillRule() {
+    int[] count = new int[16 * 16];
+    Shader shader = new Shader() {
+      @Override
+      public void drawPixel() {
+        count[imageRasterY * 16 + imageRasterX]++;
+      }
+    };
+    shader.cls(16, 16);
+    shader.face = new int[]{0, 0, 0, 1, 0, 0, 2, 0, 0, 0, 0, 0, 2, 0, 0, 3, 0, 0};
+    shader.vertex = new double[]{2, 3, 0.5, 10, 3, 0.5, 10, 11, 0.5, 2, 11, 0.5};
+    for (int i = 0; i < 2; i++) {
+      assertTrue(shader.face(i));
+      shader.drawFace();
+    }
+    for (int y = 0; y < 16; y++) for (int x = 0; x < 16; x++) { // y up, top and left edges are drawn
+      assertEquals(x >= 2 && x < 10 && y > 3 && y <= 11 ? 1 : 0, count[y * 16 + x], x + ", " + y);
+    }
+  }
+
+  @Test
+  void gouraudLightsEachVertexOnce() throws IOException {
+    int[] count = new int[1];
+    Shader shader = new Shader() {
+      @Override
+      public void illuminationRgb(double x, double y, double z, double nx, double ny, double nz,
+          double vx, double vy, double vz) {
+        count[0]++;
+        super.illuminationRgb(x, y, z, nx, ny, nz, vx, vy, vz);
+      }
+    };
+    shader.enableIllumination = Shader.Illumination.GOURAUD;
+    shader.cls(320, 200);
+    shader.addLight(new Pnt(-5, 3, 5), new Col(-1));
+    Obj obj = EngineNbsTest.spot();
+    VertexStage vertexStage = new VertexStage();
+    shader.add(obj, new Mat().set(0, 0, -3, 0.3, 0, 0), vertexStage);
+    int pairs = vertexStage.pairIllumination.length / Shader.ILLUMINATION_SIZE;
+    assertTrue(count[0] > 0 && count[0] <= pairs, count[0] + " of " + pairs);
+    assertTrue(pairs < obj.face.length / 3 / 4); // a closed mesh shares the vertices
+  }
+
+  @Test
+  void objectSpaceCulling() throws IOException {
+    Obj obj = EngineNbsTest.spot();
+    VertexStage vertexStage = new VertexStage();
+    int faces = obj.face.length / 9;
+    for (int i = 0; i < 32; i++) {
+      Mat tm = new Mat().set(0, 0.5, -2.5, i / 4 / 8.0, i % 4 / 4.0, 0);
+      vertexStage.transform(obj, null, tm, 400, 320, 200, 100);
+      assertTrue(countCullingMismatches(obj, tm, vertexStage.front) <= 2, "rotation " + i);
+    }
+    assertTrue(vertexStage.frontFaces < faces * 0.6, vertexStage.frontFaces + " of " + faces);
+    assertTrue(vertexStage.vertices < obj.vertex.length / 3 * 0.75, vertexStage.vertices + " vertices");
+  }
+
+  @Test
+  void nearPlaneFacesAreClipped() throws IOException {
+    Obj obj = EngineNbsTest.spot();
+    Shader shader = new Shader();
+    shader.cls(320, 200);
+    VertexStage vertexStage = new VertexStage();
+    shader.add(obj, new Mat().set(0, 0, -0.3, 0.1, 0, 0), vertexStage); // through the near plane
+    int culled = obj.face.length / 9 - vertexStage.frontFaces;
+    assertTrue(shader.clippedFaces > 100, shader.clippedFaces + " clipped");
+    // the winding flips behind the near plane, those are not back faces
+    assertTrue(shader.backFaces - culled <= 2, shader.backFaces + " back, " + culled + " culled");
+  }
+
+  /**
+   * Faces where the object space culling differs from the screen space winding.
+   */
+  private static int countCullingMismatches(Obj obj, Mat tm, boolean[] front) {
+    double[] camera = new double[obj.vertex.length];
+    tm.transformPoints(obj.vertex, camera, camera.length);
+    int mismatches = 0;
+    for (int i = 0; i < front.length; i++) {
+      double[] x = new double[3];
+      double[] y = new double[3];
+      for (int c = 0; c < 3; c++) {
+        int v = obj.face[i * 9 + c * 3] * 3;
+        x[c] = -camera[v] / camera[v + 2];
+        y[c] = -camera[v + 1] / camera[v + 2];
+      }
+      boolean screen = (x[1] - x[0]) * (y[2] - y[0]) - (y[1] - y[0]) * (x[2] - x[0]) >= 0;
+      if (screen != front[i]) mismatches++;
+    }
+    return mismatches;
+  }
+
+  static int[] renderLights(Shader.Illumination illumination, boolean lightLists) throws IOException {
+    Shader shader = new Shader() {
+      @Override
+      public void illuminationRgb(double x, double y, double z, double nx, double ny, double nz,
+          double vx, double vy, double vz) {
+        if (!lightLists) {
+          lightList = new int[lightPoint.length];
+          for (int i = 0; i < lightList.length; i++) lightList[i] = i;
+          lightListSize = lightList.length;
+        }
+        super.illuminationRgb(x, y, z, nx, ny, nz, vx, vy, vz);
+      }
+    };
+    shader.enableIllumination = illumination;
+    shader.cls(320, 200);
+    shader.ambientColor = new Col(0xFF222222);
+    shader.specularColor = new Col(-1);
+    shader.specularPower = 20;
+    Random random = new Random(1);
+    for (int i = 0; i < 40; i++) {
+      Pnt pnt = new Pnt(random.nextDouble() * 4 - 2, random.nextDouble() * 3 - 1.5, random.nextDouble() * 3 - 4.5);
+      shader.addLight(pnt, new Col(0xFF000000 | random.nextInt()), random.nextDouble() + 0.2);
+    }
+    shader.addLight(new Pnt(-5, 3, 5), new Col(0xFF3F3F3F));
+    Obj obj = EngineNbsTest.spot();
+    if (illumination == Shader.Illumination.LAMBERT) Obj.flatNormal(obj);
+    for (int i = 0; i < 3; i++) shader.add(obj, new Mat().set(i * 1.2 - 1.2, 0, -3, 0.3, i * 0.2, 0), new VertexStage());
+    shader.flush();
+    shader.finish();
+    if (lightLists) {
+      int min = shader.lightPoint.length;
+      for (int[] tile : shader.tileLights) min = Math.min(min, tile.length);
+      assertTrue(min < shader.lightPoint.length / 2, "tiles are culled");
+    }
+    return shader.imageRaster;
+  }
+
+  @Test
+  void lightListsMatchAllLights() throws IOException {
+    for (Shader.Illumination illumination : new Shader.Illumination[]{
+        Shader.Illumination.LAMBERT, Shader.Illumination.GOURAUD, Shader.Illumination.PHONG}) {
+      assertArrayEquals(renderLights(illumination, false), renderLights(illumination, true), illumination.name());
+    }
+  }
+
   @Test
   void viewerCenter() {
     Pnt v00 = Shader.viewerVector(0, 0, 2, 2, 5);
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk.math;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrustumTest {
+
+  @Test
+  void sphereAddEncloses() {
+    Random random = new Random(1);
+    for (int i = 0; i < 1000; i++) {
+      Sphere a = new Sphere();
+      Sphere b = new Sphere();
+      a.x = random.nextGaussian(); a.y = random.nextGaussian(); a.z = random.nextGaussian(); a.r = random.nextDouble();
+      b.x = random.nextGaussian(); b.y = random.nextGaussian(); b.z = random.nextGaussian(); b.r = random.nextDouble();
+      Sphere c = new Sphere().add(a).add(b);
+      for (Sphere s : new Sphere[]{a, b}) {
+        double d = Math.sqrt((s.x - c.x) * (s.x - c.x) + (s.y - c.y) * (s.y - c.y) + (s.z - c.z) * (s.z - c.z));
+        assertTrue(d + s.r <= c.r + 1e-9);
+      }
+    }
+  }
+
+  @Test
+  void culledPointsAreNotOnScreen() {
+    Random random = new Random(2);
+    int width = 320;
+    int height = 200;
+    double focalLength = 400;
+    double near = 0.1;
+    double far = 100;
+    Mat view = new Mat().set(1, 2, 3, 0.1, 0.2, 0.3);
+    Mat world = new Mat().inverse(view);
+    Frustum frustum = new Frustum().set(view, focalLength, width, height, near, far);
+    int culled = 0;
+    for (int i = 0; i < 10000; i++) {
+      // in camera space, then to the world
+      double[] center = {random.nextGaussian() * 20, random.nextGaussian() * 20, -random.nextDouble() * 120 + 10};
+      world.transformPoints(center, center, 3);
+      Sphere sphere = new Sphere();
+      sphere.x = center[0]; sphere.y = center[1]; sphere.z = center[2]; sphere.r = random.nextDouble() * 5;
+      if (frustum.intersects(sphere)) continue;
+      culled++;
+      for (int j = 0; j < 20; j++) {
+        double[] p = {random.nextGaussian(), random.nextGaussian(), random.nextGaussian()};
+        double k = sphere.r * Math.pow(random.nextDouble(), 1 / 3.0) / Math.sqrt(p[0] * p[0] + p[1] * p[1] + p[2] * p[2]);
+        p[0] = sphere.x + p[0] * k; p[1] = sphere.y + p[1] * k; p[2] = sphere.z + p[2] * k;
+        view.transformPoints(p, p, 3);
+        double x = width / 2.0 - 0.5 - focalLength * p[0] / p[2];
+        double y = height / 2.0 - 0.5 - focalLength * p[1] / p[2];
+        boolean onScreen = p[2] <= -near && p[2] >= -far && x >= -0.5 && x <= width - 0.5 && y >= -0.5 && y <= height - 0.5;
+        assertFalse(onScreen, "sphere " + i);
+      }
+    }
+    assertTrue(culled > 1000);
+  }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2025 Aleksei Balan
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ab.nbsnk.math;
+
+import Jama.Matrix;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MatTest {
+
+  static Matrix jama(double tx, double ty, double tz, double rx, double ry, double rz) {
+    Matrix t = new Matrix(new double[][]{{1, 0, 0, tx}, {0, 1, 0, ty}, {0, 0, 1, tz}, {0, 0, 0, 1}});
+    double s = Math.sin(2 * Math.PI * rz);
+    double c = Math.cos(2 * Math.PI * rz);
+    Matrix mrz = new Matrix(new double[][]{{c, -s, 0, 0}, {s, c, 0, 0}, {0, 0, 1, 0}, {0, 0, 0, 1}});
+    s = Math.sin(2 * Math.PI * rx);
+    c = Math.cos(2 * Math.PI * rx);
+    Matrix mrx = new Matrix(new double[][]{{1, 0, 0, 0}, {0, c, -s, 0}, {0, s, c, 0}, {0, 0, 0, 1}});
+    s = Math.sin(2 * Math.PI * ry);
+    c = Math.cos(2 * Math.PI * ry);
+    Matrix mry = new Matrix(new double[][]{{c, 0, s, 0}, {0, 1, 0, 0}, {-s, 0, c, 0}, {0, 0, 0, 1}});
+    return t.times(mry).times(mrx).times(mrz);
+  }
+
+  static void assertMat(Matrix expected, Mat actual) {
+    double[][] e = expected.getArray();
+    double[][] a = {
+        {actual.m00, actual.m01, actual.m02, actual.m03},
+        {actual.m10, actual.m11, actual.m12, actual.m13},
+        {actual.m20, actual.m21, actual.m22, actual.m23},
+        {0, 0, 0, 1}};
+    for (int i = 0; i < 4; i++) assertArrayEquals(e[i], a[i], 1e-12);
+  }
+
+  @Test
+  void matchesJama() {
+    Random random = new Random(1);
+    Matrix expected = Matrix.identity(4, 4);
+    Mat actual = new Mat();
+    for (int i = 0; i < 20; i++) {
+      double[] d = new double[6];
+      for (int j = 0; j < 6; j++) d[j] = random.nextDouble() * 2 - 1;
+      Matrix jama = jama(d[0], d[1], d[2], d[3], d[4], d[5]);
+      Mat mat = new Mat().set(d[0], d[1], d[2], d[3], d[4], d[5]);
+      assertMat(jama, mat);
+      expected = expected.times(jama);
+      actual.mul(actual, mat);
+      assertMat(expected, actual);
+      assertMat(expected.inverse(), new Mat().inverse(actual));
+    }
+    double[] points = {1, 2, 3, -4, 5, -6};
+    actual.transformPoints(points, points, points.length);
+    Matrix p = expected.times(new Matrix(new double[][]{{1, -4}, {2, 5}, {3, -6}, {1, 1}}));
+    assertArrayEquals(new double[]{p.get(0, 0), p.get(1, 0), p.get(2, 0), p.get(0, 1), p.get(1, 1), p.get(2, 1)},
+        points, 1e-12);
+  }
+
+  @Test
+  void singular() {
+    Mat mat = new Mat();
+    mat.m11 = 0;
+    assertThrows(ArithmeticException.class, () -> mat.inverse(mat));
+  }
+
+}